@@ -5,12 +5,16 @@
 package hu.mosomate.twitcheventhub;
 
 import hu.mosomate.twitcheventhub.utils.FileHelper;
+import hu.mosomate.twitcheventhub.utils.TwitchAccount;
 import hu.mosomate.twitcheventhub.utils.TwitchUser;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -31,9 +35,28 @@ public class AppSettings {
     private static final String KEY_USER = "logged_in_user";
     // EventSub
     private static final String KEY_EVENTS = "events";
+    private static final String KEY_ACCOUNTS = "accounts";
     // Services
     private static final String KEY_WS_PORT = "ws_port";
     private static final String KEY_UDP_PORTS = "udp_ports";
+    private static final String KEY_WS_QUEUE_CAPACITY = "ws_queue_capacity";
+    private static final String KEY_WS_OVERFLOW_POLICY = "ws_overflow_policy";
+    private static final String KEY_WS_HIGH_WATER_BYTES = "ws_high_water_bytes";
+    private static final String KEY_WS_REPLAY_RATE = "ws_replay_rate";
+    private static final String KEY_WS_PUBLISH_PERMISSIONS = "ws_publish_permissions";
+    private static final String KEY_WS_PUBLISH_RATE = "ws_publish_rate";
+    private static final String KEY_UDP_FRAMING = "udp_framing";
+    private static final String KEY_UDP_MTU = "udp_mtu";
+    private static final String KEY_UDP_MULTICAST_TTL = "udp_multicast_ttl";
+    private static final String KEY_UDP_MULTICAST_INTERFACE = "udp_multicast_interface";
+    private static final String KEY_REPLAY_WINDOW_SIZE = "replay_window_size";
+    private static final String KEY_DEDUP_WINDOW_SECONDS = "dedup_window_seconds";
+    private static final String KEY_DEDUP_CAPACITY = "dedup_capacity";
+    private static final String KEY_JOURNAL_SEGMENT_SIZE_MB = "journal_segment_size_mb";
+    private static final String KEY_JOURNAL_RETENTION_HOURS = "journal_retention_hours";
+    private static final String KEY_WEB_BIND_ADDRESS = "web_bind_address";
+    private static final String KEY_WEB_BACKLOG = "web_backlog";
+    private static final String KEY_DISPATCH_TOKEN = "dispatch_token";
     
     // Login
     public static volatile String applicationId;
@@ -42,9 +65,28 @@ public class AppSettings {
     public static volatile TwitchUser loggedInUser;
     // EventSub
     public static volatile List<String> events;
+    public static volatile List<TwitchAccount> accounts;
     // Services
     public static volatile Integer webSocketPort;
-    public static volatile List<Integer> udpPorts;
+    public static volatile List<String> udpPorts;
+    public static volatile Integer webSocketQueueCapacity;
+    public static volatile String webSocketOverflowPolicy;
+    public static volatile Long webSocketHighWaterBytes;
+    public static volatile Integer webSocketReplayRate;
+    public static volatile Map<String, List<String>> webSocketPublishPermissions;
+    public static volatile Integer webSocketPublishRate;
+    public static volatile Boolean udpFraming;
+    public static volatile Integer udpMtu;
+    public static volatile Integer udpMulticastTtl;
+    public static volatile String udpMulticastInterface;
+    public static volatile Integer replayWindowSize;
+    public static volatile Integer dedupWindowSeconds;
+    public static volatile Integer dedupCapacity;
+    public static volatile Integer journalSegmentSizeMb;
+    public static volatile Integer journalRetentionHours;
+    public static volatile String webServerBindAddress;
+    public static volatile Integer webServerBacklog;
+    public static volatile String dispatchToken;
     
     /**
      * Gets the file on the storage to save and load data.
@@ -112,6 +154,19 @@ public class AppSettings {
                 }
             }
             
+            // Additional accounts
+            if (dataJson.has(KEY_ACCOUNTS)) {
+                // Get array
+                var jsonArray = dataJson.getJSONArray(KEY_ACCOUNTS);
+                
+                // Add accounts
+                accounts = new ArrayList<>(jsonArray.length());
+                
+                for (var i = 0; i < jsonArray.length(); i++) {
+                    accounts.add(TwitchAccount.fromJson(jsonArray.getJSONObject(i)));
+                }
+            }
+            
             // WebSocket port
             if (dataJson.has(KEY_WS_PORT)) {
                 webSocketPort = dataJson.getInt(KEY_WS_PORT);
@@ -122,13 +177,118 @@ public class AppSettings {
                 // Get array
                 var jsonArray = dataJson.getJSONArray(KEY_UDP_PORTS);
                 
-                // Add ports
+                // Add targets, older files contain only port numbers
                 udpPorts = new ArrayList<>(jsonArray.length());
                 
                 for (var i = 0; i < jsonArray.length(); i++) {
-                    udpPorts.add(jsonArray.getInt(i));
+                    udpPorts.add(String.valueOf(jsonArray.get(i)));
+                }
+            }
+            
+            // WebSocket client queue capacity
+            if (dataJson.has(KEY_WS_QUEUE_CAPACITY)) {
+                webSocketQueueCapacity = dataJson.getInt(KEY_WS_QUEUE_CAPACITY);
+            }
+            
+            // WebSocket client queue overflow policy
+            if (dataJson.has(KEY_WS_OVERFLOW_POLICY)) {
+                webSocketOverflowPolicy = dataJson.getString(KEY_WS_OVERFLOW_POLICY);
+            }
+            
+            // WebSocket client high-water mark
+            if (dataJson.has(KEY_WS_HIGH_WATER_BYTES)) {
+                webSocketHighWaterBytes = dataJson.getLong(KEY_WS_HIGH_WATER_BYTES);
+            }
+            
+            // Replay rate of a WebSocket client
+            if (dataJson.has(KEY_WS_REPLAY_RATE)) {
+                webSocketReplayRate = dataJson.getInt(KEY_WS_REPLAY_RATE);
+            }
+            
+            // Topics the WebSocket clients can publish to, by token
+            if (dataJson.has(KEY_WS_PUBLISH_PERMISSIONS)) {
+                // Get object
+                var jsonObject = dataJson.getJSONObject(KEY_WS_PUBLISH_PERMISSIONS);
+                
+                // Add topic patterns of every token
+                webSocketPublishPermissions = new HashMap<>();
+                
+                for (var token : jsonObject.keySet()) {
+                    var jsonArray = jsonObject.getJSONArray(token);
+                    var topics = new ArrayList<String>(jsonArray.length());
+                    
+                    for (var i = 0; i < jsonArray.length(); i++) {
+                        topics.add(jsonArray.getString(i));
+                    }
+                    
+                    webSocketPublishPermissions.put(token, topics);
                 }
             }
+            
+            // Events per second a WebSocket client can publish
+            if (dataJson.has(KEY_WS_PUBLISH_RATE)) {
+                webSocketPublishRate = dataJson.getInt(KEY_WS_PUBLISH_RATE);
+            }
+            
+            // UDP framing mode
+            if (dataJson.has(KEY_UDP_FRAMING)) {
+                udpFraming = dataJson.getBoolean(KEY_UDP_FRAMING);
+            }
+            
+            // UDP datagram size in framing mode
+            if (dataJson.has(KEY_UDP_MTU)) {
+                udpMtu = dataJson.getInt(KEY_UDP_MTU);
+            }
+            
+            // UDP multicast TTL
+            if (dataJson.has(KEY_UDP_MULTICAST_TTL)) {
+                udpMulticastTtl = dataJson.getInt(KEY_UDP_MULTICAST_TTL);
+            }
+            
+            // UDP multicast network interface
+            if (dataJson.has(KEY_UDP_MULTICAST_INTERFACE)) {
+                udpMulticastInterface = dataJson.getString(KEY_UDP_MULTICAST_INTERFACE);
+            }
+            
+            // Number of messages kept for replay
+            if (dataJson.has(KEY_REPLAY_WINDOW_SIZE)) {
+                replayWindowSize = dataJson.getInt(KEY_REPLAY_WINDOW_SIZE);
+            }
+            
+            // Time window of message ID deduplication
+            if (dataJson.has(KEY_DEDUP_WINDOW_SECONDS)) {
+                dedupWindowSeconds = dataJson.getInt(KEY_DEDUP_WINDOW_SECONDS);
+            }
+            
+            // Message IDs expected in the deduplication window
+            if (dataJson.has(KEY_DEDUP_CAPACITY)) {
+                dedupCapacity = dataJson.getInt(KEY_DEDUP_CAPACITY);
+            }
+            
+            // Size of an event journal segment
+            if (dataJson.has(KEY_JOURNAL_SEGMENT_SIZE_MB)) {
+                journalSegmentSizeMb = dataJson.getInt(KEY_JOURNAL_SEGMENT_SIZE_MB);
+            }
+            
+            // Retention time of the event journal
+            if (dataJson.has(KEY_JOURNAL_RETENTION_HOURS)) {
+                journalRetentionHours = dataJson.getInt(KEY_JOURNAL_RETENTION_HOURS);
+            }
+            
+            // Address of the web server
+            if (dataJson.has(KEY_WEB_BIND_ADDRESS)) {
+                webServerBindAddress = dataJson.getString(KEY_WEB_BIND_ADDRESS);
+            }
+            
+            // Pending connections of the web server
+            if (dataJson.has(KEY_WEB_BACKLOG)) {
+                webServerBacklog = dataJson.getInt(KEY_WEB_BACKLOG);
+            }
+            
+            // Token of the dispatch endpoint
+            if (dataJson.has(KEY_DISPATCH_TOKEN)) {
+                dispatchToken = dataJson.getString(KEY_DISPATCH_TOKEN);
+            }
         }
         catch (Exception ex) {
             logger.log(Level.SEVERE, null, ex);
@@ -167,6 +327,17 @@ public class AppSettings {
                 persistJson.put(KEY_EVENTS, events);
             }
             
+            // Additional accounts
+            if (accounts != null) {
+                var jsonArray = new JSONArray();
+                
+                for (var account : accounts) {
+                    jsonArray.put(account.toJson());
+                }
+                
+                persistJson.put(KEY_ACCOUNTS, jsonArray);
+            }
+            
             // WebSocket port
             if (webSocketPort != null) {
                 persistJson.put(KEY_WS_PORT, webSocketPort);
@@ -177,6 +348,96 @@ public class AppSettings {
                 persistJson.put(KEY_UDP_PORTS, udpPorts);
             }
             
+            // WebSocket client queue capacity
+            if (webSocketQueueCapacity != null) {
+                persistJson.put(KEY_WS_QUEUE_CAPACITY, webSocketQueueCapacity);
+            }
+            
+            // WebSocket client queue overflow policy
+            if (webSocketOverflowPolicy != null) {
+                persistJson.put(KEY_WS_OVERFLOW_POLICY, webSocketOverflowPolicy);
+            }
+            
+            // WebSocket client high-water mark
+            if (webSocketHighWaterBytes != null) {
+                persistJson.put(KEY_WS_HIGH_WATER_BYTES, webSocketHighWaterBytes);
+            }
+            
+            // Replay rate of a WebSocket client
+            if (webSocketReplayRate != null) {
+                persistJson.put(KEY_WS_REPLAY_RATE, webSocketReplayRate);
+            }
+            
+            // Topics the WebSocket clients can publish to, by token
+            if (webSocketPublishPermissions != null) {
+                persistJson.put(KEY_WS_PUBLISH_PERMISSIONS, webSocketPublishPermissions);
+            }
+            
+            // Events per second a WebSocket client can publish
+            if (webSocketPublishRate != null) {
+                persistJson.put(KEY_WS_PUBLISH_RATE, webSocketPublishRate);
+            }
+            
+            // UDP framing mode
+            if (udpFraming != null) {
+                persistJson.put(KEY_UDP_FRAMING, udpFraming);
+            }
+            
+            // UDP datagram size in framing mode
+            if (udpMtu != null) {
+                persistJson.put(KEY_UDP_MTU, udpMtu);
+            }
+            
+            // UDP multicast TTL
+            if (udpMulticastTtl != null) {
+                persistJson.put(KEY_UDP_MULTICAST_TTL, udpMulticastTtl);
+            }
+            
+            // UDP multicast network interface
+            if (udpMulticastInterface != null) {
+                persistJson.put(KEY_UDP_MULTICAST_INTERFACE, udpMulticastInterface);
+            }
+            
+            // Number of messages kept for replay
+            if (replayWindowSize != null) {
+                persistJson.put(KEY_REPLAY_WINDOW_SIZE, replayWindowSize);
+            }
+            
+            // Time window of message ID deduplication
+            if (dedupWindowSeconds != null) {
+                persistJson.put(KEY_DEDUP_WINDOW_SECONDS, dedupWindowSeconds);
+            }
+            
+            // Message IDs expected in the deduplication window
+            if (dedupCapacity != null) {
+                persistJson.put(KEY_DEDUP_CAPACITY, dedupCapacity);
+            }
+            
+            // Size of an event journal segment
+            if (journalSegmentSizeMb != null) {
+                persistJson.put(KEY_JOURNAL_SEGMENT_SIZE_MB, journalSegmentSizeMb);
+            }
+            
+            // Retention time of the event journal
+            if (journalRetentionHours != null) {
+                persistJson.put(KEY_JOURNAL_RETENTION_HOURS, journalRetentionHours);
+            }
+            
+            // Address of the web server
+            if (webServerBindAddress != null) {
+                persistJson.put(KEY_WEB_BIND_ADDRESS, webServerBindAddress);
+            }
+            
+            // Pending connections of the web server
+            if (webServerBacklog != null) {
+                persistJson.put(KEY_WEB_BACKLOG, webServerBacklog);
+            }
+            
+            // Token of the dispatch endpoint
+            if (dispatchToken != null) {
+                persistJson.put(KEY_DISPATCH_TOKEN, dispatchToken);
+            }
+            
             // Get data file
             var dataFile = getFile();
             
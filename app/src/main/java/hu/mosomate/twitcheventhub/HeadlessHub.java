@@ -0,0 +1,383 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub;
+
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
+import hu.mosomate.twitcheventhub.utils.TwitchAccount;
+import hu.mosomate.twitcheventhub.utils.TwitchApiHelper;
+import hu.mosomate.twitcheventhub.utils.eventsub.EventSubManager;
+import hu.mosomate.twitcheventhub.utils.eventsub.EventSubManagerListener;
+import hu.mosomate.twitcheventhub.utils.oauth.OAuthHelper;
+import hu.mosomate.twitcheventhub.utils.oauth.OAuthLoginListener;
+import hu.mosomate.twitcheventhub.utils.services.DispatchPipeline;
+import hu.mosomate.twitcheventhub.utils.services.UdpDispatchManager;
+import hu.mosomate.twitcheventhub.utils.services.WebServerManager;
+import hu.mosomate.twitcheventhub.utils.services.WebSocketDispatchManager;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.WebSocket;
+
+/**
+ * Runs EventHub without any user interface. Every service is configured from
+ * {@link AppSettings} and started right away, so this is the entry point for
+ * servers without a display. This class must never touch Swing or AWT.
+ * <p>
+ * Besides the logged-in user, the additional accounts of
+ * {@link AppSettings#accounts} are connected as well, each with its own
+ * {@link EventSubManager}. In that case every message is tagged with its
+ * broadcaster.
+ *
+ * @author mosomate
+ */
+public final class HeadlessHub implements EventSubManagerListener, OAuthLoginListener, WebSocketDispatchManager.ActionListener, UdpDispatchManager.ActionListener {
+
+    private static final Logger logger = Logger.getLogger(HeadlessHub.class.getName());
+
+    /**
+     * Single control thread. Connecting, logging in and shutting down are
+     * serialized on it, so the service callbacks never block their own threads.
+     */
+    private final ExecutorService controlExecutor = Executors.newSingleThreadExecutor(
+            ThreadHelper.newDaemonThreadFactory("hub-control")
+    );
+
+    /**
+     * Released when the JVM is shutting down.
+     */
+    private final CountDownLatch shutdownLatch = new CountDownLatch(1);
+
+    /**
+     * Manages the WebSocket connection and subscription to EvenSub service
+     */
+    private final EventSubManager eventSubManager;
+
+    /**
+     * EventSub connections of the additional accounts
+     */
+    private final List<EventSubManager> accountManagers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Manages the web server needed for login process and static content serving
+     */
+    private final WebServerManager webServerManager;
+
+    /**
+     * Receives messages from EventSub and redistributes them to it's clients
+     */
+    private final WebSocketDispatchManager wsDispatchManager;
+
+    /**
+     * Receives messages from EventSub and redistributes them as UDP packages
+     */
+    private final UdpDispatchManager udpDispatchManager;
+    
+    /**
+     * Decouples EventSub ingestion from the dispatch sinks, each of them reads
+     * the messages on its own thread
+     */
+    private final DispatchPipeline dispatchPipeline;
+
+    public HeadlessHub() {
+        webServerManager = new WebServerManager(this);
+        eventSubManager = new EventSubManager(this);
+        udpDispatchManager = new UdpDispatchManager(this);
+        wsDispatchManager = new WebSocketDispatchManager(this);
+
+        // Replay window, SSE, journal and the hub with its sinks
+        dispatchPipeline = new DispatchPipeline(webServerManager, wsDispatchManager, udpDispatchManager);
+    }
+
+    /**
+     * Starts all the configured services and initiates the EventSub connection
+     * if there is a logged-in user.
+     */
+    public void start() {
+        // Web server is always needed for login
+        webServerManager.start();
+
+        // WebSocket dispatcher
+        if (AppSettings.webSocketPort != null) {
+            wsDispatchManager.start(AppSettings.webSocketPort);
+        }
+
+        // UDP dispatcher
+        if (AppSettings.udpPorts != null && !AppSettings.udpPorts.isEmpty()) {
+            udpDispatchManager.start(AppSettings.udpPorts);
+        }
+
+        // Connect to EventSub or ask for login
+        if (AppSettings.loggedInUser != null && AppSettings.accessToken != null) {
+            controlExecutor.execute(this::connectEventSub);
+        }
+        else if (hasAccounts()) {
+            logger.log(Level.WARNING, "No logged-in user, only the additional accounts are connected.");
+        }
+        else if (AppSettings.applicationId != null && AppSettings.scopes != null) {
+            logger.log(Level.WARNING, "No logged-in user. Open this URL to log in:\n{0}",
+                    OAuthHelper.getAuthorizationUrl(AppSettings.applicationId, AppSettings.scopes));
+        }
+        else {
+            logger.log(Level.WARNING, "No application ID and scopes in settings, login is not possible.");
+        }
+
+        // Additional accounts
+        controlExecutor.execute(this::connectAccounts);
+    }
+
+    /**
+     * Stops all the services and saves the settings.
+     */
+    public void stop() {
+        // Persist data
+        AppSettings.persistData();
+
+        // Stop services
+        webServerManager.stop();
+        eventSubManager.close();
+        accountManagers.forEach(EventSubManager::close);
+        wsDispatchManager.stop();
+        udpDispatchManager.stop();
+        dispatchPipeline.stop();
+
+        controlExecutor.shutdownNow();
+    }
+
+    /**
+     * Connects to EventSub with the persisted user and events.
+     */
+    private void connectEventSub() {
+        if (AppSettings.events == null || AppSettings.events.isEmpty()) {
+            logger.log(Level.WARNING, "No events in settings, EventSub connection skipped.");
+            return;
+        }
+
+        // Tell the accounts apart if there are more of them
+        eventSubManager.setBroadcasterTag(hasAccounts() ? AppSettings.loggedInUser : null);
+
+        var connecting = eventSubManager.connect(
+                AppSettings.applicationId,
+                AppSettings.accessToken,
+                AppSettings.loggedInUser.getId(),
+                AppSettings.events
+        );
+        
+        if (!connecting) {
+            logger.log(Level.SEVERE, "EventSub connection could not be started");
+        }
+    }
+
+    /**
+     * @return true if there are additional accounts in the settings
+     */
+    private static boolean hasAccounts() {
+        return AppSettings.accounts != null && !AppSettings.accounts.isEmpty();
+    }
+
+    /**
+     * Connects the additional accounts to EventSub, each with its own
+     * manager. Users of the tokens are queried if not known yet.
+     */
+    private void connectAccounts() {
+        if (!hasAccounts()) {
+            return;
+        }
+
+        if (AppSettings.applicationId == null) {
+            logger.log(Level.WARNING, "No application ID in settings, additional accounts are skipped.");
+            return;
+        }
+
+        var userQueried = false;
+
+        for (var account : AppSettings.accounts) {
+            // Query the user of the token
+            if (account.getUser() == null) {
+                try {
+                    account.setUser(TwitchApiHelper.getTokenUser(AppSettings.applicationId, account.getAccessToken()));
+                    userQueried = true;
+                }
+                catch (Exception ex) {
+                    logger.log(Level.SEVERE, "User request of an additional account failed", ex);
+                    continue;
+                }
+            }
+
+            // Own connection for every account
+            var manager = new EventSubManager(new AccountListener(account));
+            manager.setBroadcasterTag(account.getUser());
+            accountManagers.add(manager);
+
+            manager.connect(
+                    AppSettings.applicationId,
+                    account.getAccessToken(),
+                    account.getUser().getId(),
+                    account.getEvents()
+            );
+        }
+
+        // Keep the queried users
+        if (userQueried) {
+            AppSettings.persistData();
+        }
+    }
+
+    @Override
+    public void onEventSubError(String message) {
+        logger.log(Level.SEVERE, "EventSub error: {0}", message);
+    }
+
+    @Override
+    public void onEventSubManagerConnecting(int step, Object... params) {
+        if (step == EventSubManager.CONNECTION_STEP_SUBSCRIBING) {
+            logger.log(Level.FINE, "Subscribed to {0}", params[0]);
+        }
+        else if (step == EventSubManager.CONNECTION_STEP_RECONNECTING) {
+            logger.log(Level.WARNING, "EventSub connection lost, reconnect attempt {0} in {1} ms", params);
+        }
+    }
+
+    @Override
+    public void onEventSubManagerConnected() {
+        logger.log(Level.INFO, "EventSub connected");
+    }
+
+    @Override
+    public void onEventSubManagerDisconnected() {
+        logger.log(Level.INFO, "EventSub disconnected");
+    }
+
+    @Override
+    public void onEventSubMessage(String message) {
+        // Hand over to the dispatchers, this never blocks
+        dispatchPipeline.publish(message);
+    }
+
+    @Override
+    public void onOAuthLoginSuccess(String accessToken) {
+        controlExecutor.execute(() -> {
+            try {
+                // Query logged-in user's data
+                var user = TwitchApiHelper.getTokenUser(AppSettings.applicationId, accessToken);
+
+                // Set config
+                AppSettings.accessToken = accessToken;
+                AppSettings.loggedInUser = user;
+                AppSettings.persistData();
+
+                logger.log(Level.INFO, "Logged in as {0}", user.getDisplayName());
+
+                // Reconnect with the new user
+                eventSubManager.close();
+                connectEventSub();
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "User request failed", ex);
+            }
+        });
+    }
+
+    @Override
+    public void onUdpMessageSenderStarted() {
+        logger.log(Level.INFO, "UDP dispatcher started");
+    }
+
+    @Override
+    public void onUdpMessageSenderStopped() {
+        logger.log(Level.INFO, "UDP dispatcher stopped");
+    }
+
+    @Override
+    public void onWebSocketServerStarted() {
+        logger.log(Level.INFO, "WebSocket dispatcher started");
+    }
+
+    @Override
+    public void onWebSocketServerStopped() {
+        logger.log(Level.INFO, "WebSocket dispatcher stopped");
+    }
+
+    @Override
+    public void onWebSocketClientConnected(WebSocket ws) {
+        logger.log(Level.FINE, "WebSocket client connected: {0}", ws.getRemoteSocketAddress());
+    }
+
+    @Override
+    public void onWebSocketClientDisconnected(WebSocket ws) {
+        logger.log(Level.FINE, "WebSocket client disconnected: {0}", ws.getRemoteSocketAddress());
+    }
+
+    /**
+     * Listener of an additional account's EventSub connection. Messages go to
+     * the same dispatch hub, the rest is only logged.
+     */
+    private class AccountListener implements EventSubManagerListener {
+
+        private final TwitchAccount account;
+
+        private AccountListener(TwitchAccount account) {
+            this.account = account;
+        }
+
+        @Override
+        public void onEventSubError(String message) {
+            logger.log(Level.SEVERE, "EventSub error of {0}: {1}", new Object[] { account.getUser().getDisplayName(), message });
+        }
+
+        @Override
+        public void onEventSubManagerConnecting(int step, Object... params) {
+            if (step == EventSubManager.CONNECTION_STEP_SUBSCRIBING) {
+                logger.log(Level.FINE, "{0} subscribed to {1}", new Object[] { account.getUser().getDisplayName(), params[0] });
+            }
+            else if (step == EventSubManager.CONNECTION_STEP_RECONNECTING) {
+                logger.log(Level.WARNING, "EventSub connection of {0} lost, reconnect attempt {1} in {2} ms",
+                        new Object[] { account.getUser().getDisplayName(), params[0], params[1] });
+            }
+        }
+
+        @Override
+        public void onEventSubManagerConnected() {
+            logger.log(Level.INFO, "EventSub connected for {0}", account.getUser().getDisplayName());
+        }
+
+        @Override
+        public void onEventSubManagerDisconnected() {
+            logger.log(Level.INFO, "EventSub disconnected for {0}", account.getUser().getDisplayName());
+        }
+
+        @Override
+        public void onEventSubMessage(String message) {
+            HeadlessHub.this.onEventSubMessage(message);
+        }
+    }
+
+    /**
+     * Runs the hub until the JVM is shut down.
+     *
+     * @param args the command line arguments
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        // Load persisted data
+        AppSettings.loadData();
+
+        var hub = new HeadlessHub();
+
+        // Stop gracefully on SIGTERM or Ctrl+C
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            hub.stop();
+            hub.shutdownLatch.countDown();
+        }, "hub-shutdown"));
+
+        hub.start();
+
+        // Keep the main thread alive
+        hub.shutdownLatch.await();
+    }
+}
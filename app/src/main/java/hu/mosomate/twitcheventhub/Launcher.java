@@ -0,0 +1,35 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of the application. Starts the {@link MainWindow} by default or
+ * the {@link HeadlessHub} when the "--headless" argument is given. This class
+ * must not reference any Swing class, so the headless mode doesn't load them.
+ *
+ * @author mosomate
+ */
+public class Launcher {
+
+    public static final String ARG_HEADLESS = "--headless";
+
+    /**
+     * @param args the command line arguments
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if (Arrays.asList(args).contains(ARG_HEADLESS)) {
+            // Tell AWT as well, just in case a library touches it
+            System.setProperty("java.awt.headless", "true");
+
+            HeadlessHub.main(args);
+        }
+        else {
+            MainWindow.main(args);
+        }
+    }
+}
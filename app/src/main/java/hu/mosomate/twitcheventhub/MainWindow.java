@@ -15,6 +15,7 @@ import hu.mosomate.twitcheventhub.utils.eventsub.EventSubManager;
 import hu.mosomate.twitcheventhub.utils.eventsub.EventSubManagerListener;
 import hu.mosomate.twitcheventhub.utils.oauth.OAuthHelper;
 import hu.mosomate.twitcheventhub.utils.oauth.OAuthLoginListener;
+import hu.mosomate.twitcheventhub.utils.services.DispatchPipeline;
 import hu.mosomate.twitcheventhub.utils.services.UdpDispatchManager;
 import hu.mosomate.twitcheventhub.utils.services.WebServerManager;
 import hu.mosomate.twitcheventhub.utils.services.WebSocketDispatchManager;
@@ -60,6 +61,12 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
      * Receives messages from EventSub and redistributes them as UDP packages
      */
     private final UdpDispatchManager udpDispatchManager;
+    
+    /**
+     * Decouples EventSub ingestion from the dispatch sinks, each of them reads
+     * the messages on its own thread
+     */
+    private final DispatchPipeline dispatchPipeline;
 
     /**
      * Creates new form MainWindow
@@ -71,7 +78,6 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
         
         // Web server
         webServerManager = new WebServerManager(this);
-        webServerManager.start();
         
         // EventSubManager
         eventSubManager = new EventSubManager(this);
@@ -82,6 +88,11 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
         // WebSocket dispatcher
         wsDispatchManager = new WebSocketDispatchManager(this);
         
+        // Replay window, SSE, journal and the hub with its sinks
+        dispatchPipeline = new DispatchPipeline(webServerManager, wsDispatchManager, udpDispatchManager);
+        
+        webServerManager.start();
+        
         // ----- Init layout ----- //
         
         // Init views
@@ -653,8 +664,8 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
     }//GEN-LAST:event_eventRemoveButtonActionPerformed
 
     private void eventsubConnectButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_eventsubConnectButtonActionPerformed
-        // Disconnect
-        if (eventSubManager.isConnected()) {
+        // Disconnect, stops reconnecting as well
+        if (eventSubManager.isConnected() || eventSubManager.isReconnecting()) {
             eventSubManager.close();
         }
         // Connect
@@ -718,6 +729,9 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
         
         // Stop UDP dispatcher
         udpDispatchManager.stop();
+        
+        // Stop dispatch hub, flush event journal
+        dispatchPipeline.stop();
     }//GEN-LAST:event_formWindowClosing
 
     private void scopeListValueChanged(javax.swing.event.ListSelectionEvent evt) {//GEN-FIRST:event_scopeListValueChanged
@@ -844,15 +858,15 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
         }
         // UDP service is not running
         else {
-            // Get port strings
+            // Get target strings
             var portStrings = udpPortsField.getText().split(",");
             
-            // New array for integer ports
-            var ports = new ArrayList<Integer>();
+            // New array for targets, a port alone or host:port
+            var ports = new ArrayList<String>();
             
-            // Parsing ports
+            // Parsing targets
             for (String portString : portStrings) {
-                ports.add(Integer.valueOf(portString.trim()));
+                ports.add(portString.trim());
             }
             
             // Save ports
@@ -1073,8 +1087,8 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
             eventsubConnectionStatusLabel.setForeground(COLOR_TEXT_RED);
             eventsubConnectionStatusLabel.setText("Disconnected");
             
-            // Button to connect
-            eventsubConnectButton.setText("Connect");
+            // Button to connect, or to stop reconnecting
+            eventsubConnectButton.setText(eventSubManager.isReconnecting() ? "Disconnect" : "Connect");
         }
     }
     
@@ -1202,68 +1216,66 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
 
     @Override
     public void onEventSubManagerConnecting(int step, Object... params) {
-        // Set status label to blue
-        eventsubConnectionStatusLabel.setForeground(COLOR_TEXT_BLUE);
-        
-        // Set status label text
-        var statusLabel = switch (step) {
-            case EventSubManager.CONNECTION_STEP_INITIATED -> "Connecting...";
-            case EventSubManager.CONNECTION_STEP_WEBSOCKET_CONNECTED -> "Websocket connected";
-            case EventSubManager.CONNECTION_STEP_SUBSCRIBING -> {
-                // Get freshly subbed event
-                var subbedEvent = (String) params[0];
+        // Listener is called from a background thread
+        java.awt.EventQueue.invokeLater(() -> {
+            // Set status label to blue
+            eventsubConnectionStatusLabel.setForeground(COLOR_TEXT_BLUE);
+        
+            // Set status label text
+            var statusLabel = switch (step) {
+                case EventSubManager.CONNECTION_STEP_INITIATED -> "Connecting...";
+                case EventSubManager.CONNECTION_STEP_WEBSOCKET_CONNECTED -> "Websocket connected";
+                case EventSubManager.CONNECTION_STEP_SUBSCRIBING -> {
+                    // Subscriptions finish in any order, show their count
+                    var completedCount = (int) params[2];
+                    var totalCount = (int) params[3];
                 
-                // Get events from the list
-                var events = SwingHelper.getItemsFromJList(eventList);
-                
-                // Get index of subbed event
-                var subbedEventIndex = events.indexOf(subbedEvent);
-                
-                // This is not possible, but better to handle it
-                if (subbedEventIndex == -1) {
-                    yield "Subscribing to events [?/" + events.size() + "]";
+                    yield "Subscribing to events [" + completedCount + "/" + totalCount + "]";
                 }
-                
-                yield "Subscribing to events [" + (subbedEventIndex + 1) + "/" + events.size() + "]";
-            }
-            default -> "Disconnected";
-        };
+                case EventSubManager.CONNECTION_STEP_RECONNECTING -> {
+                    var attempt = (int) params[0];
+                    var delay = (long) params[1];
+                    
+                    yield "Connection lost, reconnecting in " + (delay + 999) / 1_000 + "s (attempt " + attempt + ")";
+                }
+                default -> "Disconnected";
+            };
         
-        eventsubConnectionStatusLabel.setText(statusLabel);
+            eventsubConnectionStatusLabel.setText(statusLabel);
+        });
     }
 
     @Override
     public void onEventSubError(String message) {
         // Notify user
-        JOptionPane.showMessageDialog(
+        java.awt.EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(
                 MainWindow.this,
                 "Error during EvenSub connection! Error:\n\n" + message,
                 "EvenSub connection",
                 JOptionPane.ERROR_MESSAGE
-        );
+        ));
     }
 
     @Override
     public void onEventSubManagerConnected() {
-        // Set events data on successful connection
-        AppSettings.events = SwingHelper.getItemsFromJList(eventList);
-        
-        // Update UI
-        updateEventSubSettingsLayout();
+        java.awt.EventQueue.invokeLater(() -> {
+            // Set events data on successful connection
+            AppSettings.events = SwingHelper.getItemsFromJList(eventList);
+
+            // Update UI
+            updateEventSubSettingsLayout();
+        });
     }
 
     @Override
     public void onEventSubManagerDisconnected() {
-        updateEventSubSettingsLayout();
+        java.awt.EventQueue.invokeLater(this::updateEventSubSettingsLayout);
     }
 
     @Override
     public void onEventSubMessage(String message) {
-        // Send to WS dispatcher
-        wsDispatchManager.sendMessage(message);
-
-        // Send to UDP dispatcher
-        udpDispatchManager.sendMessage(message);
+        // Hand over to the dispatchers, this never blocks
+        dispatchPipeline.publish(message);
     }
 
     @Override
@@ -1276,47 +1288,49 @@ public class MainWindow extends javax.swing.JFrame implements EventSubManagerLis
             @Override
             public void onError(String message) {
                 // Notify user
-                JOptionPane.showMessageDialog(
+                java.awt.EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(
                     MainWindow.this,
                     "An error occurred during user request.\n\nError:\n" + message,
                     "User request error",
                     JOptionPane.ERROR_MESSAGE
-                );
+                ));
             }
 
             @Override
             public void onSuccess(TwitchUser user) {
-                // Set config
-                AppSettings.accessToken = accessToken;
-                AppSettings.applicationId = applicationId;
-                AppSettings.scopes = SwingHelper.getItemsFromJList(scopeList);
-                AppSettings.loggedInUser = user;
-                
-                // Update UI
-                updateLoginSettingsLayout();
-                updateEventSubSettingsLayout();
+                java.awt.EventQueue.invokeLater(() -> {
+                    // Set config
+                    AppSettings.accessToken = accessToken;
+                    AppSettings.applicationId = applicationId;
+                    AppSettings.scopes = SwingHelper.getItemsFromJList(scopeList);
+                    AppSettings.loggedInUser = user;
+
+                    // Update UI
+                    updateLoginSettingsLayout();
+                    updateEventSubSettingsLayout();
+                });
             }
         });
     }
 
     @Override
     public void onUdpMessageSenderStarted() {
-        updateUdpDispatchLayout();
+        java.awt.EventQueue.invokeLater(this::updateUdpDispatchLayout);
     }
 
     @Override
     public void onUdpMessageSenderStopped() {
-        updateUdpDispatchLayout();
+        java.awt.EventQueue.invokeLater(this::updateUdpDispatchLayout);
     }
 
     @Override
     public void onWebSocketServerStarted() {
-        updateWsDispatchLayout();
+        java.awt.EventQueue.invokeLater(this::updateWsDispatchLayout);
     }
 
     @Override
     public void onWebSocketServerStopped() {
-        updateWsDispatchLayout();
+        java.awt.EventQueue.invokeLater(this::updateWsDispatchLayout);
     }
 
     @Override
@@ -5,11 +5,14 @@
 package hu.mosomate.twitcheventhub.utils;
 
 import com.sun.net.httpserver.HttpExchange;
-import hu.mosomate.twitcheventhub.utils.services.WebServerManager;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -21,57 +24,92 @@ import java.util.Map;
 public class HttpHelper {
     
     /**
-     * Simply sends back to a file attached to the JAR as resource.
+     * Responds a simple message even without a proper HTML frame.
      * 
-     * @param exchange HTTP request from the server
-     * @param resName full name of the resource
+     * @param he HTTP request from the server
+     * @param status HTTP status code of the response
+     * @param message the message to show
      * @throws IOException 
      */
-    public static void respondHtmlResourceFile(HttpExchange exchange, String resName) throws IOException {
-        // The path to the resource inside the JAR.
-        // A leading '/' is crucial here to start from the classpath root.
-        var resourcePath = "/" + resName;
-
-        // Get the InputStream for the HTML file.
-        // The ClassLoader will find it inside the JAR.
-        try (var inputStream = WebServerManager.class.getResourceAsStream(resourcePath)) {
-            // Check if the resource was found
-            if (inputStream == null) {
-                respondSimpleMessage(exchange, 404, "Resource " + resName + " was not found!");
-                return;
-            }
-
-            // Set the Content-Type header to tell the browser it's HTML
-            exchange.getResponseHeaders().set("Content-Type", "text/html");
-
-            // Read all bytes from the InputStream
-            var htmlBytes = inputStream.readAllBytes();
-            
-            // Send the HTTP response headers with a 200 OK status
-            exchange.sendResponseHeaders(200, htmlBytes.length);
+    public static void respondSimpleMessage(HttpExchange he, int status, String message) throws IOException {
+        he.sendResponseHeaders(status, message.length());
 
-            // Write the HTML content to the response body
-            try (var outputStream = exchange.getResponseBody()) {
-                outputStream.write(htmlBytes);
-            }
+        // Write body
+        try (var os = he.getResponseBody()) {
+            os.write(message.getBytes());
         }
     }
     
     /**
-     * Responds a simple message even without a proper HTML frame.
+     * Responds a JSON document.
      * 
      * @param he HTTP request from the server
      * @param status HTTP status code of the response
-     * @param message the message to show
+     * @param json the JSON document
      * @throws IOException 
      */
-    public static void respondSimpleMessage(HttpExchange he, int status, String message) throws IOException {
-        he.sendResponseHeaders(status, message.length());
+    public static void respondJson(HttpExchange he, int status, String json) throws IOException {
+        var bytes = json.getBytes(StandardCharsets.UTF_8);
+        
+        he.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        he.sendResponseHeaders(status, bytes.length);
 
         // Write body
         try (var os = he.getResponseBody()) {
-            os.write(message.getBytes());
+            os.write(bytes);
+        }
+    }
+    
+    /**
+     * Gets the parameters from the HTTP request's query string.
+     * 
+     * @param exchange HTTP request from the server
+     * @return the decoded query parameters
+     */
+    public static Map<String, String> parseQueryParams(HttpExchange exchange) {
+        return parseQueryString(exchange.getRequestURI().getRawQuery());
+    }
+    
+    /**
+     * Parses a URL-encoded query string.
+     * 
+     * @param query the raw query, can be null
+     * @return the query parameters
+     */
+    public static Map<String, String> parseQueryString(String query) {
+        // New map for the parameters
+        Map<String, String> parameters = new HashMap<>();
+        
+        if (query == null || query.isEmpty()) {
+            return parameters;
         }
+        
+        // Parse the URL-encoded string
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf("=");
+            if (idx > 0) {
+                String key = URLDecoder.decode(pair.substring(0, idx), StandardCharsets.UTF_8);
+                String value = URLDecoder.decode(pair.substring(idx + 1), StandardCharsets.UTF_8);
+                parameters.put(key, value);
+            }
+        }
+        
+        return parameters;
+    }
+    
+    /**
+     * Parses a time parameter given as ISO-8601 or epoch milliseconds.
+     * 
+     * @param time the parameter value
+     * @return the time in epoch milliseconds
+     * @throws DateTimeParseException if the time is invalid
+     */
+    public static long parseTime(String time) {
+        if (!time.isEmpty() && time.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(time);
+        }
+        
+        return Instant.parse(time).toEpochMilli();
     }
     
     /**
@@ -0,0 +1,37 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Some thread and executor related helper functions. The services use their
+ * own dedicated threads instead of the shared Swing worker pool, so they work
+ * the same way with or without a user interface.
+ *
+ * @author mosomate
+ */
+public class ThreadHelper {
+
+    /**
+     * Creates a {@link ThreadFactory} for daemon threads with readable names.
+     * Daemon threads never prevent the JVM from shutting down.
+     *
+     * @param namePrefix prefix of the thread names, a counter is appended
+     * @return the thread factory
+     */
+    public static ThreadFactory newDaemonThreadFactory(String namePrefix) {
+        // Counter for the thread names
+        var counter = new AtomicInteger();
+
+        return (Runnable runnable) -> {
+            var thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        };
+    }
+}
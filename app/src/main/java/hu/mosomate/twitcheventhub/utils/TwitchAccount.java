@@ -0,0 +1,77 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Simple data class to hold an additional Twitch account (broadcaster) with
+ * its own token and events.
+ *
+ * @author mosomate
+ */
+public class TwitchAccount {
+
+    private final String accessToken;
+    private final List<String> events;
+    private volatile TwitchUser user;
+
+    public TwitchAccount(String accessToken, List<String> events, TwitchUser user) {
+        this.accessToken = accessToken;
+        this.events = events;
+        this.user = user;
+    }
+
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the user of the token, null until it is queried
+     */
+    public TwitchUser getUser() {
+        return user;
+    }
+
+    public void setUser(TwitchUser user) {
+        this.user = user;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        var json = new JSONObject();
+
+        json.put("access_token", accessToken);
+        json.put("events", events);
+
+        if (user != null) {
+            json.put("user", user.toJson());
+        }
+
+        return json;
+    }
+
+    public static TwitchAccount fromJson(JSONObject json) throws JSONException {
+        // Get events
+        var eventsJson = json.getJSONArray("events");
+        var events = new ArrayList<String>(eventsJson.length());
+
+        for (var i = 0; i < eventsJson.length(); i++) {
+            events.add(eventsJson.getString(i));
+        }
+
+        return new TwitchAccount(
+                json.getString("access_token"),
+                events,
+                json.has("user") ? TwitchUser.fromJson(json.getJSONObject("user")) : null
+        );
+    }
+}
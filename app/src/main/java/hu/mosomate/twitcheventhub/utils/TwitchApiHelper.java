@@ -7,9 +7,17 @@ package hu.mosomate.twitcheventhub.utils;
 import hu.mosomate.twitcheventhub.AppConstants;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
-import javax.swing.SwingWorker;
 import org.json.JSONObject;
 
 /**
@@ -19,6 +27,38 @@ import org.json.JSONObject;
  */
 public class TwitchApiHelper {
     
+    /**
+     * Dedicated background threads for the async API requests. Listeners are
+     * called from these threads.
+     */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(
+            ThreadHelper.newDaemonThreadFactory("twitch-api")
+    );
+    
+    /**
+     * Shared client, keeps the HTTP/2 connection to Twitch alive between
+     * requests.
+     */
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(executor)
+            .build();
+    
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
+    
+    private static final Pattern EVENT_SUBSCRIPTION_PATTERN = Pattern.compile(AppConstants.EVENT_SUBSCRIPTION_REGEX);
+    
+    /**
+     * Maximum number of subscription requests in flight.
+     */
+    private static final int MAX_CONCURRENT_SUBSCRIPTIONS = 8;
+    
+    /**
+     * Attempts of a subscription request rejected by the rate limit.
+     */
+    private static final int MAX_SUBSCRIPTION_ATTEMPTS = 3;
+    
     /**
      * Gives back a necessarily preconfigured {@link HttpURLConnection}.
      * 
@@ -101,37 +141,37 @@ public class TwitchApiHelper {
     }
     
     /**
-     * Gets the user for the given access token asynchronously.
+     * Gets the user for the given access token asynchronously. The listener is
+     * called from a background thread.
      * 
      * @param applicationId application ID or client ID as Twitch calls it
      * @param accessToken access token from the login process
      * @param listener to be called when the request is done
      */
     public static void getTokenUser(String applicationId, String accessToken, TokenUserRequestListener listener) {
-        var worker = new SwingWorker<TwitchUser, Void>() {
-            @Override
-            protected TwitchUser doInBackground() throws Exception {
-                return TwitchApiHelper.getTokenUser(applicationId, accessToken);
+        executor.execute(() -> {
+            TwitchUser user;
+            
+            // Do the request
+            try {
+                user = TwitchApiHelper.getTokenUser(applicationId, accessToken);
             }
-
-            @Override
-            protected void done() {
-                // No callback, nothing to do with the result
-                if (listener == null) {
-                    return;
-                }
-                
-                // Pass response to UI
-                try {
-                    listener.onSuccess((TwitchUser) get());
-                }
-                catch (Exception ex) {
+            catch (Exception ex) {
+                if (listener != null) {
                     listener.onError(ex.getMessage());
                 }
+                
+                return;
             }
-        };
-
-        worker.execute();
+            
+            // No callback, nothing to do with the result
+            if (listener == null) {
+                return;
+            }
+            
+            // Pass response to listener
+            listener.onSuccess(user);
+        });
     }
     
     /**
@@ -143,38 +183,22 @@ public class TwitchApiHelper {
     }
     
     /**
-     * Blocking function to subscribe to event after the websocket connection
-     * was opened.
+     * Builds the request for subscribing to an event.
      * 
      * @param applicationId registered Twitch application
      * @param accessToken access token from the login process
      * @param userId the logged-in user's ID
      * @param sessionId the session ID from websocket welcome message
      * @param event the event to subscribe to
-     * @return subscription ID
-     * @throws Exception 
+     * @return the request
+     * @throws Exception if the event is malformed
      */
-    public static String subscribeToEvent(String applicationId, String accessToken, String userId, String sessionId, String event) throws Exception {
-        
-        // ----- Get new connection ----- //
-        
-        var connection = getConfiguredConnection(
-                AppConstants.EVENTSUB_SUBSCRIBE_ENDPOINT,
-                "POST",
-                applicationId,
-                accessToken
-        );
-        
-        // Set content type to JSON
-        connection.setRequestProperty("Content-Type", "application/json");
+    private static HttpRequest buildSubscriptionRequest(String applicationId, String accessToken, String userId, String sessionId, String event) throws Exception {
         
         // ----- Parse event ----- //
         
-        // Create a Pattern object
-        var pattern = Pattern.compile(AppConstants.EVENT_SUBSCRIPTION_REGEX);
-
         // Now create matcher object
-        var matcher = pattern.matcher(event);
+        var matcher = EVENT_SUBSCRIPTION_PATTERN.matcher(event);
 
         // Regex was not found in event subscription
         if (!matcher.find()) {
@@ -226,36 +250,36 @@ public class TwitchApiHelper {
         // Add transport to post body JSON
         postBodyJson.put("transport", transportJson);
         
-        // ----- Send body ----- //
-        
-        FileHelper.writeStringToStream(
-                postBodyJson.toString(),
-                connection.getOutputStream()
-        );
-        
-        // ----- Read response ----- //
-        
-        int responseCode = connection.getResponseCode();
+        // ----- Build request ----- //
         
+        return HttpRequest.newBuilder(new URI(AppConstants.EVENTSUB_SUBSCRIBE_ENDPOINT))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Authorization", "Bearer " + accessToken)
+                .header("Client-Id", applicationId)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(postBodyJson.toString()))
+                .build();
+    }
+    
+    /**
+     * Processes the response of a subscription request.
+     * 
+     * @param response the response from Twitch
+     * @return subscription ID
+     * @throws Exception if the subscription failed
+     */
+    private static String parseSubscriptionResponse(HttpResponse<String> response) throws Exception {
         // Error
-        if (!HttpHelper.isResponseCodeSuccess(responseCode)) {
-            // Read error
-            var response = FileHelper.readStreamToString(connection.getErrorStream());
-
+        if (!HttpHelper.isResponseCodeSuccess(response.statusCode())) {
             // Convert error to JSON object
-            var jsonResponse = new JSONObject(response);
+            var jsonResponse = new JSONObject(response.body());
 
             // Error
-            if (jsonResponse.has("error")) {
-                throw new Exception(jsonResponse.getString("message"));
-            }
+            throw new Exception(jsonResponse.optString("message", "HTTP " + response.statusCode()));
         }
-
-        // Read response
-        var response = FileHelper.readStreamToString(connection.getInputStream());
         
         // Convert response to JSON object
-        var jsonResponse = new JSONObject(response);
+        var jsonResponse = new JSONObject(response.body());
         
         // Get the response that counts
         var subResponseJson = jsonResponse.getJSONArray("data").getJSONObject(0);
@@ -270,7 +294,30 @@ public class TwitchApiHelper {
     }
     
     /**
-     * Async function to subscribe to events.
+     * Blocking function to subscribe to event after the websocket connection
+     * was opened.
+     * 
+     * @param applicationId registered Twitch application
+     * @param accessToken access token from the login process
+     * @param userId the logged-in user's ID
+     * @param sessionId the session ID from websocket welcome message
+     * @param event the event to subscribe to
+     * @return subscription ID
+     * @throws Exception 
+     */
+    public static String subscribeToEvent(String applicationId, String accessToken, String userId, String sessionId, String event) throws Exception {
+        var request = buildSubscriptionRequest(applicationId, accessToken, userId, sessionId, event);
+        
+        return parseSubscriptionResponse(httpClient.send(request, HttpResponse.BodyHandlers.ofString()));
+    }
+    
+    /**
+     * Async function to subscribe to events. The requests are sent
+     * concurrently over the shared HTTP/2 client, paced by Twitch's rate limit
+     * headers. The listener is called from background threads, possibly
+     * concurrently. After the first error no more requests are sent and
+     * {@link EventSubscriptionRequestListener#onSubscriptionFinished()} is not
+     * called.
      * 
      * @param applicationId registered Twitch application
      * @param accessToken access token from the login process
@@ -280,50 +327,108 @@ public class TwitchApiHelper {
      * @param listener to be called after every successful subscription
      */
     public static void subscribeToEvents(String applicationId, String accessToken, String userId, String sessionId, List<String> events, EventSubscriptionRequestListener listener) {
-        var worker = new SwingWorker<Void, String>() {
-            @Override
-            protected Void doInBackground() throws Exception {
-                for (String event : events) {
-                    // Sub to one event
-                    String subId = subscribeToEvent(applicationId, accessToken, userId, sessionId, event);
-                    
-                    // Return progress
-                    publish(event, subId);
-                }
-                
-                return null;
-            }
-
-            @Override
-            protected void process(List<String> chunks) {
-                if (listener == null) {
-                    return;
+        executor.execute(() -> {
+            // Nothing to subscribe to
+            if (events.isEmpty()) {
+                if (listener != null) {
+                    listener.onSubscriptionFinished();
                 }
                 
-                // Pass event and subscription ID
-                listener.onSubscribed(chunks.get(0), chunks.get(1));
+                return;
             }
-
-            @Override
-            protected void done() {
-                if (listener == null) {
-                    return;
-                }
-                
-                try {
-                    // Get result to rethrow any exception
-                    get();
+            
+            var rateLimiter = new TwitchRateLimiter(MAX_CONCURRENT_SUBSCRIPTIONS, MAX_CONCURRENT_SUBSCRIPTIONS);
+            var completed = new AtomicInteger();
+            var failed = new AtomicBoolean(false);
+            
+            try {
+                for (String event : events) {
+                    var request = buildSubscriptionRequest(applicationId, accessToken, userId, sessionId, event);
                     
-                    // Subscripting is done
-                    listener.onSubscriptionFinished();
+                    sendSubscriptionRequest(request, event, 0, rateLimiter, (String subId, Exception error) -> {
+                        if (error != null) {
+                            // Report only the first error
+                            if (failed.compareAndSet(false, true) && listener != null) {
+                                listener.onError(error.getMessage());
+                            }
+                            
+                            return;
+                        }
+                        
+                        var completedCount = completed.incrementAndGet();
+                        
+                        if (listener == null || failed.get()) {
+                            return;
+                        }
+                        
+                        // Pass event and subscription ID
+                        listener.onSubscribed(event, subId, completedCount, events.size());
+                        
+                        // Subscripting is done
+                        if (completedCount == events.size()) {
+                            listener.onSubscriptionFinished();
+                        }
+                    });
+                    
+                    // Stop sending after an error
+                    if (failed.get()) {
+                        return;
+                    }
                 }
-                catch (Exception ex) {
+            }
+            catch (Exception ex) {
+                if (failed.compareAndSet(false, true) && listener != null) {
                     listener.onError(ex.getMessage());
                 }
             }
-        };
-
-        worker.execute();
+        });
+    }
+    
+    /**
+     * Sends a subscription request when the rate limit allows it. Requests
+     * rejected with 429 are retried after the limiter was updated.
+     * 
+     * @param request the request to send
+     * @param event the event of the request
+     * @param attempt number of previous attempts
+     * @param rateLimiter shared limiter of the subscription process
+     * @param callback called with the subscription ID or the error
+     * @throws InterruptedException if interrupted while waiting for the limiter
+     */
+    private static void sendSubscriptionRequest(HttpRequest request, String event, int attempt, TwitchRateLimiter rateLimiter, BiConsumer<String, Exception> callback) throws InterruptedException {
+        rateLimiter.acquire();
+        
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((HttpResponse<String> response, Throwable throwable) -> {
+            rateLimiter.release(response != null ? response.headers() : null);
+            
+            // Network error
+            if (throwable != null) {
+                callback.accept(null, new Exception(throwable.getMessage(), throwable));
+                return;
+            }
+            
+            // Rate limited, try again when the bucket allows it
+            if (response.statusCode() == 429 && attempt < MAX_SUBSCRIPTION_ATTEMPTS - 1) {
+                executor.execute(() -> {
+                    try {
+                        sendSubscriptionRequest(request, event, attempt + 1, rateLimiter, callback);
+                    }
+                    catch (InterruptedException ex) {
+                        callback.accept(null, ex);
+                    }
+                });
+                
+                return;
+            }
+            
+            // Result of the subscription
+            try {
+                callback.accept(parseSubscriptionResponse(response), null);
+            }
+            catch (Exception ex) {
+                callback.accept(null, new Exception(event + ": " + ex.getMessage(), ex));
+            }
+        });
     }
     
     /**
@@ -345,7 +450,7 @@ public class TwitchApiHelper {
      */
     public interface EventSubscriptionRequestListener {
         void onError(String message);
-        void onSubscribed(String event, String subId);
+        void onSubscribed(String event, String subId, int completedCount, int totalCount);
         void onSubscriptionFinished();
     }
 }
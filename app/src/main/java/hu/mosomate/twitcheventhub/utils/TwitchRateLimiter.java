@@ -0,0 +1,110 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils;
+
+import java.net.http.HttpHeaders;
+
+/**
+ * Token bucket for Twitch API requests. The bucket is refilled from the
+ * {@code Ratelimit-Remaining}, {@code Ratelimit-Limit} and
+ * {@code Ratelimit-Reset} headers of the responses, so it follows the real
+ * state of the rate limit instead of guessing it. The number of requests in
+ * flight is bounded as well.
+ *
+ * @author mosomate
+ */
+public class TwitchRateLimiter {
+
+    private static final String HEADER_LIMIT = "Ratelimit-Limit";
+    private static final String HEADER_REMAINING = "Ratelimit-Remaining";
+    private static final String HEADER_RESET = "Ratelimit-Reset";
+
+    /**
+     * Waiting time when the bucket is empty and the reset time is unknown.
+     */
+    private static final long FALLBACK_WAIT_MILLIS = 1_000;
+
+    private final int maxInFlight;
+
+    // Guarded by this
+    private int tokens;
+    private int limit;
+    private long resetAtMillis = 0;
+    private int inFlight = 0;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param initialTokens requests allowed before the first response tells
+     * the real state
+     * @param maxInFlight maximum number of requests in flight
+     */
+    public TwitchRateLimiter(int initialTokens, int maxInFlight) {
+        this.tokens = initialTokens;
+        this.limit = initialTokens;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Takes a token, waits if the bucket is empty or too many requests are in
+     * flight. Every acquire must be followed by a {@link #release} call.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (true) {
+            var now = System.currentTimeMillis();
+
+            // The bucket was refilled by Twitch
+            if (tokens <= 0 && resetAtMillis > 0 && now >= resetAtMillis) {
+                tokens = limit;
+                resetAtMillis = 0;
+            }
+
+            if (tokens > 0 && inFlight < maxInFlight) {
+                tokens--;
+                inFlight++;
+                return;
+            }
+
+            // Wait for a response or for the reset
+            if (tokens > 0 || inFlight > 0) {
+                wait(resetAtMillis > now ? resetAtMillis - now : FALLBACK_WAIT_MILLIS);
+            }
+            else if (resetAtMillis > now) {
+                wait(resetAtMillis - now);
+            }
+            else {
+                // Nothing will wake us up, try again later with one token
+                wait(FALLBACK_WAIT_MILLIS);
+                tokens = Math.max(tokens, 1);
+            }
+        }
+    }
+
+    /**
+     * Gives back the slot of a finished request and updates the bucket from
+     * its response headers.
+     *
+     * @param headers headers of the response, null if the request failed
+     */
+    public synchronized void release(HttpHeaders headers) {
+        inFlight--;
+
+        if (headers != null) {
+            var remaining = headers.firstValueAsLong(HEADER_REMAINING);
+
+            if (remaining.isPresent()) {
+                // Requests still in flight will use some of the remaining points
+                tokens = (int) Math.max(0, remaining.getAsLong() - inFlight);
+            }
+
+            headers.firstValueAsLong(HEADER_LIMIT).ifPresent((long value) -> limit = (int) value);
+            headers.firstValueAsLong(HEADER_RESET).ifPresent((long value) -> resetAtMillis = value * 1_000);
+        }
+
+        notifyAll();
+    }
+}
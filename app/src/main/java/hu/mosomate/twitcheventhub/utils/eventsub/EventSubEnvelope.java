@@ -0,0 +1,664 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.eventsub;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The metadata of an EventSub frame, read without building a JSON tree.
+ * <p>
+ * The scanner walks the top level object only until the {@code metadata}
+ * object is over, the rest of the frame (the payload) is skipped or not even
+ * looked at. Twitch sends the metadata first, so for most frames only a few
+ * hundred characters are touched and the only allocations are the extracted
+ * values. The full tree is built on demand by {@link #getJson()}.
+ * <p>
+ * Frames from outside of Twitch can be checked by {@link #parseStrict},
+ * which validates the whole frame in the same pass, still without building
+ * a tree.
+ *
+ * @author mosomate
+ */
+public final class EventSubEnvelope {
+
+    private static final String KEY_METADATA = "metadata";
+    private static final String KEY_MESSAGE_TYPE = "message_type";
+    private static final String KEY_MESSAGE_ID = "message_id";
+    private static final String KEY_MESSAGE_TIMESTAMP = "message_timestamp";
+    private static final String KEY_SUBSCRIPTION_TYPE = "subscription_type";
+    private static final String KEY_BROADCASTER_USER_ID = "broadcaster_user_id";
+    private static final String KEY_BROADCASTER_USER_NAME = "broadcaster_user_name";
+
+    /**
+     * Maximum nesting of objects and arrays in strict mode.
+     */
+    private static final int MAX_DEPTH = 256;
+
+    /**
+     * The original frame.
+     */
+    private final String message;
+
+    private String messageType;
+
+    private String messageId;
+
+    private String messageTimestamp;
+
+    private String subscriptionType;
+
+    private String broadcasterUserId;
+
+    private String broadcasterUserName;
+
+    /**
+     * Position right after the opening brace of the metadata object, -1 if
+     * there is no metadata.
+     */
+    private int metadataContentStart = -1;
+
+    /**
+     * Set if the metadata object has no members.
+     */
+    private boolean metadataEmpty = true;
+
+    /**
+     * Built on the first {@link #getJson()} call.
+     */
+    private JSONObject json;
+
+    private EventSubEnvelope(String message) {
+        this.message = message;
+    }
+
+    /**
+     * Reads the metadata of a frame.
+     *
+     * @param message the frame as received
+     * @return the envelope, its fields are null if the frame has no metadata
+     * @throws JSONException if the frame is malformed before the end of the
+     * metadata
+     */
+    public static EventSubEnvelope parse(String message) throws JSONException {
+        var envelope = new EventSubEnvelope(message);
+
+        new Scanner(message, envelope, false).scanRoot();
+
+        return envelope;
+    }
+
+    /**
+     * Reads the metadata of a frame and checks that the whole frame is one
+     * valid JSON object.
+     *
+     * @param message the frame
+     * @return the envelope, its fields are null if the frame has no metadata
+     * @throws JSONException if the frame is not valid JSON
+     */
+    public static EventSubEnvelope parseStrict(String message) throws JSONException {
+        var envelope = new EventSubEnvelope(message);
+
+        new Scanner(message, envelope, true).scanRoot();
+
+        return envelope;
+    }
+
+    /**
+     * @return the original frame
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return {@code metadata.message_type}, null if missing
+     */
+    public String getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * @return {@code metadata.message_id}, null if missing
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * @return {@code metadata.message_timestamp}, null if missing
+     */
+    public String getMessageTimestamp() {
+        return messageTimestamp;
+    }
+
+    /**
+     * @return {@code metadata.subscription_type}, null if missing (only
+     * notifications and revocations have it)
+     */
+    public String getSubscriptionType() {
+        return subscriptionType;
+    }
+
+    /**
+     * @return {@code metadata.broadcaster_user_id} added by the hub, null if
+     * missing
+     */
+    public String getBroadcasterUserId() {
+        return broadcasterUserId;
+    }
+
+    /**
+     * @return {@code metadata.broadcaster_user_name} added by the hub, null
+     * if missing
+     */
+    public String getBroadcasterUserName() {
+        return broadcasterUserName;
+    }
+
+    /**
+     * Creates a copy of the frame with the broadcaster it belongs to added to
+     * the metadata. The rest of the frame is left untouched.
+     *
+     * @param userId ID of the broadcaster
+     * @param userName display name of the broadcaster
+     * @return the tagged frame, the original one if it has no metadata
+     */
+    public String withBroadcaster(String userId, String userName) {
+        if (metadataContentStart < 0) {
+            return message;
+        }
+
+        return message.substring(0, metadataContentStart) +
+                JSONObject.quote(KEY_BROADCASTER_USER_ID) + ':' + JSONObject.quote(userId) + ',' +
+                JSONObject.quote(KEY_BROADCASTER_USER_NAME) + ':' + JSONObject.quote(userName) +
+                (metadataEmpty ? "" : ",") +
+                message.substring(metadataContentStart);
+    }
+
+    /**
+     * Builds the full JSON tree of the frame, only once.
+     *
+     * @return the frame as JSON object
+     * @throws JSONException if the frame is malformed
+     */
+    public JSONObject getJson() throws JSONException {
+        if (json == null) {
+            json = new JSONObject(message);
+        }
+
+        return json;
+    }
+
+    /**
+     * Minimal JSON scanner over the frame.
+     */
+    private static final class Scanner {
+
+        private final String text;
+
+        private final EventSubEnvelope envelope;
+
+        /**
+         * Validate everything instead of skipping.
+         */
+        private final boolean strict;
+
+        private int position = 0;
+
+        // Bounds of the last read string, without the quotes
+        private int stringStart;
+        private int stringEnd;
+        private boolean stringEscaped;
+
+        private Scanner(String text, EventSubEnvelope envelope, boolean strict) {
+            this.text = text;
+            this.envelope = envelope;
+            this.strict = strict;
+        }
+
+        /**
+         * Walks the top level object until the metadata is read.
+         */
+        private void scanRoot() throws JSONException {
+            expect('{');
+
+            if (peek() == '}') {
+                position++;
+                expectEnd();
+                return;
+            }
+
+            while (true) {
+                readString();
+                var isMetadata = isKey(KEY_METADATA);
+                expect(':');
+
+                if (isMetadata && peek() == '{') {
+                    scanMetadata();
+
+                    // Nothing else is needed
+                    if (!strict) {
+                        return;
+                    }
+                }
+                else {
+                    skipValue();
+                }
+
+                if (next() == '}') {
+                    expectEnd();
+                    return;
+                }
+
+                expectPrevious(',');
+            }
+        }
+
+        /**
+         * Checks that only whitespace follows the root object in strict mode.
+         */
+        private void expectEnd() throws JSONException {
+            if (!strict) {
+                return;
+            }
+
+            while (position < text.length() && " \t\r\n".indexOf(text.charAt(position)) >= 0) {
+                position++;
+            }
+
+            if (position < text.length()) {
+                throw error("Unexpected data after the end");
+            }
+        }
+
+        /**
+         * Reads the interesting members of the metadata object.
+         */
+        private void scanMetadata() throws JSONException {
+            expect('{');
+
+            envelope.metadataContentStart = position;
+
+            if (peek() == '}') {
+                position++;
+                return;
+            }
+
+            envelope.metadataEmpty = false;
+
+            while (true) {
+                readString();
+
+                // Find out which field it is before reading the value
+                var field = isKey(KEY_MESSAGE_TYPE) ? 1 :
+                        isKey(KEY_MESSAGE_ID) ? 2 :
+                        isKey(KEY_MESSAGE_TIMESTAMP) ? 3 :
+                        isKey(KEY_SUBSCRIPTION_TYPE) ? 4 :
+                        isKey(KEY_BROADCASTER_USER_ID) ? 5 :
+                        isKey(KEY_BROADCASTER_USER_NAME) ? 6 :
+                        0;
+
+                expect(':');
+
+                if (field != 0 && peek() == '"') {
+                    readString();
+                    var value = currentString();
+
+                    switch (field) {
+                        case 1 -> envelope.messageType = value;
+                        case 2 -> envelope.messageId = value;
+                        case 3 -> envelope.messageTimestamp = value;
+                        case 4 -> envelope.subscriptionType = value;
+                        case 5 -> envelope.broadcasterUserId = value;
+                        case 6 -> envelope.broadcasterUserName = value;
+                    }
+                }
+                else {
+                    skipValue();
+                }
+
+                if (next() == '}') {
+                    return;
+                }
+
+                expectPrevious(',');
+            }
+        }
+
+        /**
+         * Skips a value of any type.
+         */
+        private void skipValue() throws JSONException {
+            if (strict) {
+                validateValue(1);
+                return;
+            }
+
+            var c = peek();
+
+            // String
+            if (c == '"') {
+                readString();
+                return;
+            }
+
+            // Object or array, only the nesting is followed
+            if (c == '{' || c == '[') {
+                var depth = 0;
+
+                while (position < text.length()) {
+                    c = text.charAt(position);
+
+                    if (c == '"') {
+                        readString();
+                        continue;
+                    }
+
+                    position++;
+
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    }
+                    else if ((c == '}' || c == ']') && --depth == 0) {
+                        return;
+                    }
+                }
+
+                throw error("Unterminated object or array");
+            }
+
+            // Number, true, false or null
+            var start = position;
+
+            while (position < text.length() && ",}] \t\r\n".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+
+            if (position == start) {
+                throw error("Missing value");
+            }
+        }
+
+        /**
+         * Reads a value of any type and checks its syntax.
+         *
+         * @param depth nesting of the value
+         */
+        private void validateValue(int depth) throws JSONException {
+            if (depth > MAX_DEPTH) {
+                throw error("Too deep nesting");
+            }
+
+            var c = peek();
+
+            switch (c) {
+                case '"' -> readString();
+                case '{' -> {
+                    position++;
+
+                    if (peek() == '}') {
+                        position++;
+                        return;
+                    }
+
+                    while (true) {
+                        readString();
+                        expect(':');
+                        validateValue(depth + 1);
+
+                        if (next() == '}') {
+                            return;
+                        }
+
+                        expectPrevious(',');
+                    }
+                }
+                case '[' -> {
+                    position++;
+
+                    if (peek() == ']') {
+                        position++;
+                        return;
+                    }
+
+                    while (true) {
+                        validateValue(depth + 1);
+
+                        if (next() == ']') {
+                            return;
+                        }
+
+                        expectPrevious(',');
+                    }
+                }
+                case 't' -> expectLiteral("true");
+                case 'f' -> expectLiteral("false");
+                case 'n' -> expectLiteral("null");
+                default -> validateNumber();
+            }
+        }
+
+        private void expectLiteral(String literal) throws JSONException {
+            if (!text.startsWith(literal, position)) {
+                throw error("Invalid literal");
+            }
+
+            position += literal.length();
+        }
+
+        /**
+         * Checks a number: an optional minus sign, an integer part without
+         * leading zeros, then optional fraction and exponent.
+         */
+        private void validateNumber() throws JSONException {
+            if (position < text.length() && text.charAt(position) == '-') {
+                position++;
+            }
+
+            if (position < text.length() && text.charAt(position) == '0') {
+                position++;
+            }
+            else if (skipDigits() == 0) {
+                throw error("Invalid value");
+            }
+
+            if (position < text.length() && text.charAt(position) == '.') {
+                position++;
+
+                if (skipDigits() == 0) {
+                    throw error("Invalid number");
+                }
+            }
+
+            if (position < text.length() && (text.charAt(position) == 'e' || text.charAt(position) == 'E')) {
+                position++;
+
+                if (position < text.length() && (text.charAt(position) == '+' || text.charAt(position) == '-')) {
+                    position++;
+                }
+
+                if (skipDigits() == 0) {
+                    throw error("Invalid number");
+                }
+            }
+        }
+
+        /**
+         * @return number of digits skipped
+         */
+        private int skipDigits() {
+            var start = position;
+
+            while (position < text.length() && text.charAt(position) >= '0' && text.charAt(position) <= '9') {
+                position++;
+            }
+
+            return position - start;
+        }
+
+        /**
+         * Reads the bounds of a string, the position is after its closing
+         * quote.
+         */
+        private void readString() throws JSONException {
+            expect('"');
+
+            stringStart = position;
+            stringEscaped = false;
+
+            while (position < text.length()) {
+                var c = text.charAt(position);
+
+                if (c == '\\') {
+                    stringEscaped = true;
+
+                    if (strict) {
+                        validateEscape();
+                    }
+
+                    position += 2;
+                    continue;
+                }
+
+                if (c == '"') {
+                    stringEnd = position;
+                    position++;
+                    return;
+                }
+
+                // Control characters must be escaped
+                if (strict && c < 0x20) {
+                    throw error("Unescaped control character");
+                }
+
+                position++;
+            }
+
+            throw error("Unterminated string");
+        }
+
+        /**
+         * Checks the escape sequence at the position, the unicode digits are
+         * skipped as well.
+         */
+        private void validateEscape() throws JSONException {
+            if (position + 1 >= text.length() || "\"\\/bfnrtu".indexOf(text.charAt(position + 1)) < 0) {
+                throw error("Invalid escape");
+            }
+
+            if (text.charAt(position + 1) == 'u') {
+                for (var i = position + 2; i < position + 6; i++) {
+                    if (i >= text.length() || Character.digit(text.charAt(i), 16) < 0) {
+                        throw error("Invalid unicode escape");
+                    }
+                }
+
+                position += 4;
+            }
+        }
+
+        /**
+         * Compares the last read string to a key without allocating.
+         */
+        private boolean isKey(String key) {
+            return !stringEscaped &&
+                    stringEnd - stringStart == key.length() &&
+                    text.regionMatches(stringStart, key, 0, key.length());
+        }
+
+        /**
+         * @return the last read string, unescaped
+         */
+        private String currentString() throws JSONException {
+            if (!stringEscaped) {
+                return text.substring(stringStart, stringEnd);
+            }
+
+            var builder = new StringBuilder(stringEnd - stringStart);
+
+            for (var i = stringStart; i < stringEnd; i++) {
+                var c = text.charAt(i);
+
+                if (c != '\\') {
+                    builder.append(c);
+                    continue;
+                }
+
+                c = text.charAt(++i);
+
+                switch (c) {
+                    case 'b' -> builder.append('\b');
+                    case 'f' -> builder.append('\f');
+                    case 'n' -> builder.append('\n');
+                    case 'r' -> builder.append('\r');
+                    case 't' -> builder.append('\t');
+                    case 'u' -> {
+                        if (i + 4 >= stringEnd) {
+                            throw error("Invalid unicode escape");
+                        }
+
+                        try {
+                            builder.append((char) Integer.parseInt(text, i + 1, i + 5, 16));
+                        }
+                        catch (NumberFormatException ex) {
+                            throw error("Invalid unicode escape");
+                        }
+
+                        i += 4;
+                    }
+                    default -> builder.append(c);
+                }
+            }
+
+            return builder.toString();
+        }
+
+        /**
+         * @return the next non-whitespace character, without consuming it
+         */
+        private char peek() throws JSONException {
+            while (position < text.length()) {
+                var c = text.charAt(position);
+
+                if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                    return c;
+                }
+
+                position++;
+            }
+
+            throw error("Unexpected end");
+        }
+
+        /**
+         * @return the next non-whitespace character, consumed
+         */
+        private char next() throws JSONException {
+            var c = peek();
+            position++;
+            return c;
+        }
+
+        private void expect(char expected) throws JSONException {
+            if (next() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        /**
+         * Checks the character consumed by the last {@link #next()} call.
+         */
+        private void expectPrevious(char expected) throws JSONException {
+            if (text.charAt(position - 1) != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        private JSONException error(String message) {
+            return new JSONException(message + " at " + position);
+        }
+    }
+}
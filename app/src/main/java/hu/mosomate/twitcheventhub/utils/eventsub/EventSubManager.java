@@ -5,21 +5,39 @@
 package hu.mosomate.twitcheventhub.utils.eventsub;
 
 import hu.mosomate.twitcheventhub.AppConstants;
-import hu.mosomate.twitcheventhub.utils.TwitchApiHelper;
-import java.net.URI;
+import hu.mosomate.twitcheventhub.AppSettings;
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
+import hu.mosomate.twitcheventhub.utils.TwitchUser;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.java_websocket.client.WebSocketClient;
-import org.java_websocket.handshake.ServerHandshake;
-import org.json.JSONException;
-import org.json.JSONObject;
 
 /**
+ * Manages the EventSub connection. Twitch limits the number of subscriptions
+ * per WebSocket session, so the events are split between as many sessions
+ * as needed ({@link EventSubSession}). Their messages are merged into one
+ * stream for the listener.
+ * <p>
+ * Notifications are delivered at most once: their {@code message_id} is
+ * checked by a {@link MessageIdDeduplicator} before dispatching.
+ * <p>
+ * A watchdog checks the sessions periodically. If Twitch goes quiet for
+ * longer than the keepalive timeout, or a connection is lost, all the
+ * sessions are dropped and connected again (with new subscriptions) after a
+ * jittered exponential backoff, until {@link #close()} is called.
  *
  * @author mosomate
  */
-public class EventSubManager implements TwitchApiHelper.EventSubscriptionRequestListener {
+public class EventSubManager {
     
     private static final Logger logger = Logger.getLogger(EventSubManager.class.getName());
     
@@ -27,6 +45,49 @@ public class EventSubManager implements TwitchApiHelper.EventSubscriptionRequest
     public static final int CONNECTION_STEP_WEBSOCKET_CONNECTED = 1;
     public static final int CONNECTION_STEP_SUBSCRIBING = 2;
     public static final int CONNECTION_STEP_ALL_SUBSCRIBED = 3;
+    public static final int CONNECTION_STEP_RECONNECTING = 4;
+    
+    /**
+     * Maximum number of enabled subscriptions in one WebSocket session.
+     */
+    public static final int MAX_SUBSCRIPTIONS_PER_SESSION = 300;
+    
+    /**
+     * Maximum number of WebSocket sessions of one user.
+     */
+    public static final int MAX_SESSIONS = 3;
+    
+    /**
+     * Default time for remembering message IDs.
+     */
+    public static final int DEFAULT_DEDUP_WINDOW_SECONDS = 600;
+    
+    /**
+     * Default number of message IDs expected in the window.
+     */
+    public static final int DEFAULT_DEDUP_CAPACITY = 65_536;
+    
+    /**
+     * Time between the checks of the watchdog.
+     */
+    private static final long WATCHDOG_INTERVAL_MILLIS = 1_000;
+    
+    /**
+     * Delay of the first reconnect attempt, doubled for every failed one.
+     */
+    private static final long RECONNECT_BASE_DELAY_MILLIS = 1_000;
+    
+    /**
+     * Maximum delay between reconnect attempts.
+     */
+    private static final long RECONNECT_MAX_DELAY_MILLIS = 60_000;
+    
+    /**
+     * Runs the watchdogs and reconnects of all the managers.
+     */
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            ThreadHelper.newDaemonThreadFactory("eventsub-watchdog")
+    );
 
     /**
      * To be called whenever a EventSub related action
@@ -35,32 +96,111 @@ public class EventSubManager implements TwitchApiHelper.EventSubscriptionRequest
     private final EventSubManagerListener listener;
     
     /**
-     * Currently connected websocket to EventSub endpoint.
+     * Currently active sessions.
+     */
+    private final List<EventSubSession> sessions = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Sessions closed by {@link #close()} but not closed yet by the server.
+     * They don't keep a new connection from starting.
+     */
+    private final List<EventSubSession> closingSessions = new CopyOnWriteArrayList<>();
+    
+    /**
+     * Number of subscribed events in all sessions.
+     */
+    private final AtomicInteger subscribedCount = new AtomicInteger();
+    
+    /**
+     * Number of sessions done with subscribing.
      */
-    private volatile WebSocketClient webSocketClient;
+    private final AtomicInteger finishedSessionCount = new AtomicInteger();
     
     /**
-     * The time when the last message was received. Used to check if the
-     * connection is still alive.
+     * Number of events in all sessions.
      */
-    private long lastMessageReceived = 0;
+    private volatile int totalEventCount = 0;
     
     /**
-     * To be set after a welcome message. Used for alive check.
+     * Serializes the messages of the sessions.
      */
-    private long keepAliveInterval = 10_000;
+    private final Object messageLock = new Object();
+    
+    /**
+     * Drops redelivered notifications.
+     */
+    private final MessageIdDeduplicator deduplicator;
+    
+    /**
+     * If set, the messages are tagged with this broadcaster.
+     */
+    private volatile TwitchUser broadcasterTag;
+    
+    // Connection parameters, kept for reconnecting
+    private String applicationId;
+    private String accessToken;
+    private String userId;
+    private List<String> events;
+    
+    /**
+     * Set while the connection is wanted, cleared by {@link #close()}.
+     */
+    private volatile boolean autoReconnect = false;
+    
+    // Guarded by this
+    private ScheduledFuture<?> watchdogFuture;
+    private ScheduledFuture<?> reconnectFuture;
+    private int failedAttempts = 0;
     
     /**
-     * When a reconnect message is received, this URL is used for reconnection.
+     * Start of the current outage, 0 if there is none.
      */
-    private String reconnectUrl;
+    private volatile long outageStartedAt = 0;
+    
+    // Metrics
+    private final AtomicLong reconnectAttempts = new AtomicLong();
+    private final AtomicLong stalledSessions = new AtomicLong();
+    private final AtomicLong outageCount = new AtomicLong();
+    private final AtomicLong totalOutageMillis = new AtomicLong();
+    private volatile long lastOutageMillis = 0;
     
     public EventSubManager(EventSubManagerListener listener) {
         this.listener = listener;
+        this.deduplicator = new MessageIdDeduplicator(
+                (AppSettings.dedupWindowSeconds != null ? AppSettings.dedupWindowSeconds : DEFAULT_DEDUP_WINDOW_SECONDS) * 1_000L,
+                AppSettings.dedupCapacity != null ? AppSettings.dedupCapacity : DEFAULT_DEDUP_CAPACITY
+        );
+    }
+    
+    /**
+     * Sets the broadcaster to be added to the metadata of every message
+     * ({@code broadcaster_user_id}, {@code broadcaster_user_name}), so the
+     * dispatchers can tell the accounts apart.
+     * 
+     * @param broadcaster the broadcaster, null to leave the messages as they are
+     */
+    public void setBroadcasterTag(TwitchUser broadcaster) {
+        this.broadcasterTag = broadcaster;
+    }
+    
+    /**
+     * Adds the broadcaster tag to a message if it was set.
+     * 
+     * @param envelope the message
+     * @return the message to be dispatched
+     */
+    private String tagMessage(EventSubEnvelope envelope) {
+        var broadcaster = broadcasterTag;
+        
+        if (broadcaster == null) {
+            return envelope.getMessage();
+        }
+        
+        return envelope.withBroadcaster(broadcaster.getId(), broadcaster.getDisplayName());
     }
     
     /**
-     * Initiates the websocket connection and subscribing to events.
+     * Initiates the websocket connections and subscribing to events.
      * 
      * @param applicationId Twitch application (client) ID
      * @param accessToken OAuth token from the authorization process 
@@ -68,117 +208,71 @@ public class EventSubManager implements TwitchApiHelper.EventSubscriptionRequest
      * @param events the events to subscribe to
      * @return 
      */
-    public boolean connect(String applicationId, String accessToken, String userId, List<String> events) {
+    public synchronized boolean connect(String applicationId, String accessToken, String userId, List<String> events) {
         // Prevent connection if open
-        if (isConnected()) {
+        if (!sessions.isEmpty()) {
             return false;
         }
         
-        try {
-            // Use regular or reconnect URL for new websocket connection
-            webSocketClient = new WebSocketClient(new URI(reconnectUrl != null ?
-                    reconnectUrl :
-                    AppConstants.EVENTSUB_WEBSOCKET_ENDPOINT
-            )) {
-                @Override
-                public void onOpen(ServerHandshake sh) {
-                    if (listener == null) {
-                        return;
-                    }
-                    
-                    listener.onEventSubManagerConnecting(CONNECTION_STEP_WEBSOCKET_CONNECTED);
-                }
-
-                @Override
-                public void onMessage(String message) {
-                    try {
-                        // Convert message to JSON object
-                        var jsonMessage = new JSONObject(message);
-                        
-                        // Process message
-                        if (jsonMessage.has("metadata") &&
-                                jsonMessage.getJSONObject("metadata").has("message_type")
-                        ) {
-                            // Mark receiving time
-                            lastMessageReceived = System.currentTimeMillis();
-
-                            // Get message type
-                            var messageType = jsonMessage.getJSONObject("metadata").getString("message_type");
-
-                            // Decide what to do with message
-                            switch (messageType) {
-                                case "session_welcome":
-                                    // Get session data
-                                    var sessionJson = jsonMessage
-                                            .getJSONObject("payload")
-                                            .getJSONObject("session");
-
-                                    // Get session ID for subscription
-                                    var sessionId = sessionJson.getString("id");
-
-                                    // Set keep alive interval
-                                    keepAliveInterval = sessionJson.getLong("keepalive_timeout_seconds") * 1_000;
-
-                                    // Subscribe to events
-                                    TwitchApiHelper.subscribeToEvents(
-                                            applicationId,
-                                            accessToken,
-                                            userId,
-                                            sessionId,
-                                            events,
-                                            EventSubManager.this
-                                    );
-                                    
-                                    break;
-                                case "session_keepalive":
-                                case "notification":
-                                    if (listener != null) {
-                                        listener.onEventSubMessage(message);
-                                    }
-                                    break;
-                                case "session_reconnect":
-                                    handleReconnectMessage(jsonMessage);
-                                    break;
-                            }
-                        }
-                    }
-                    catch (JSONException ex) {
-                        logger.log(Level.SEVERE, null, ex);
-                    }
-                }
-
-                @Override
-                public void onClose(int i, String string, boolean bln) {
-                    // Check for reconnection URL and reconnect if necessary
-                    if (reconnectUrl != null) {
-                        EventSubManager.this.connect(
-                                applicationId,
-                                accessToken,
-                                userId,
-                                events
-                        );
-                        
-                        return;
-                    }
-                    
-                    if (listener == null) {
-                        return;
-                    }
-                    
-                    listener.onEventSubManagerDisconnected();
-                }
-
-                @Override
-                public void onError(Exception excptn) {
-                    logger.log(Level.SEVERE, null, excptn);
-                }
-            };
-            
-            // Clear reconnect URL
-            reconnectUrl = null;
+        // Too many events even for all sessions
+        if (events.size() > MAX_SUBSCRIPTIONS_PER_SESSION * MAX_SESSIONS) {
+            if (listener != null) {
+                listener.onEventSubError("Too many events, the limit is " + MAX_SUBSCRIPTIONS_PER_SESSION * MAX_SESSIONS);
+            }
             
-            // Open websocket
-            webSocketClient.connect();
+            return false;
+        }
+        
+        // Keep parameters for reconnecting
+        this.applicationId = applicationId;
+        this.accessToken = accessToken;
+        this.userId = userId;
+        this.events = List.copyOf(events);
+        
+        // A manual connect replaces a pending reconnect
+        cancelReconnect();
+        failedAttempts = 0;
+        outageStartedAt = 0;
+        
+        if (!openSessions()) {
+            close();
+            return false;
+        }
+        
+        // Start watching the sessions
+        autoReconnect = true;
+        
+        if (watchdogFuture == null) {
+            watchdogFuture = scheduler.scheduleWithFixedDelay(this::checkSessions,
+                    WATCHDOG_INTERVAL_MILLIS, WATCHDOG_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Creates and opens the sessions with the kept parameters.
+     * 
+     * @return true if all the connections were initiated
+     */
+    private synchronized boolean openSessions() {
+        // Reset progress
+        subscribedCount.set(0);
+        finishedSessionCount.set(0);
+        totalEventCount = events.size();
+        
+        // Split events between sessions
+        var shards = shardEvents(events);
+        
+        for (var i = 0; i < shards.size(); i++) {
+            sessions.add(new EventSubSession(this, i, applicationId, accessToken, userId, shards.get(i)));
+        }
+        
+        try {
+            // Open websockets
+            for (var session : sessions) {
+                session.open(AppConstants.EVENTSUB_WEBSOCKET_ENDPOINT);
+            }
             
             // Notify listener
             if (listener != null) {
@@ -187,48 +281,286 @@ public class EventSubManager implements TwitchApiHelper.EventSubscriptionRequest
         }
         catch (Exception ex) {
             logger.log(Level.SEVERE, null, ex);
+            closeSessions();
+            sessions.clear();
             return false;
         }
         
         return true;
     }
     
+    /**
+     * Periodic check of the watchdog, drops the sessions Twitch stopped
+     * talking to.
+     */
+    private void checkSessions() {
+        var now = System.currentTimeMillis();
+        
+        for (var session : sessions) {
+            if (session.isStalled(now)) {
+                logger.log(Level.WARNING, "EventSub session {0} missed its keepalive, reconnecting", session.getIndex());
+                stalledSessions.incrementAndGet();
+                session.abort("Keepalive timeout");
+            }
+        }
+    }
+    
+    /**
+     * Schedules the next reconnect attempt with jittered exponential backoff.
+     */
+    private synchronized void scheduleReconnect() {
+        if (!autoReconnect || reconnectFuture != null) {
+            return;
+        }
+        
+        // Exponential delay, a random half of it is dropped so the accounts
+        // (and other hubs) do not reconnect at the same time
+        var attempt = ++failedAttempts;
+        var delay = Math.min(RECONNECT_MAX_DELAY_MILLIS, RECONNECT_BASE_DELAY_MILLIS << Math.min(attempt - 1, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        
+        reconnectAttempts.incrementAndGet();
+        reconnectFuture = scheduler.schedule(this::reconnect, delay, TimeUnit.MILLISECONDS);
+        
+        if (listener != null) {
+            listener.onEventSubManagerConnecting(CONNECTION_STEP_RECONNECTING, attempt, delay);
+        }
+    }
+    
+    private synchronized void reconnect() {
+        reconnectFuture = null;
+        
+        // Closed or connected manually in the meantime
+        if (!autoReconnect || !sessions.isEmpty()) {
+            return;
+        }
+        
+        if (!openSessions()) {
+            scheduleReconnect();
+        }
+    }
+    
+    private synchronized void cancelReconnect() {
+        if (reconnectFuture != null) {
+            reconnectFuture.cancel(false);
+            reconnectFuture = null;
+        }
+    }
+    
+    /**
+     * Splits the events into as few, evenly sized parts as the session limit
+     * allows.
+     * 
+     * @param events all the events
+     * @return events of each session
+     */
+    private static List<List<String>> shardEvents(List<String> events) {
+        var sessionCount = Math.max(1, (events.size() + MAX_SUBSCRIPTIONS_PER_SESSION - 1) / MAX_SUBSCRIPTIONS_PER_SESSION);
+        var shards = new ArrayList<List<String>>(sessionCount);
+        
+        for (var i = 0; i < sessionCount; i++) {
+            var from = events.size() * i / sessionCount;
+            var to = events.size() * (i + 1) / sessionCount;
+            
+            shards.add(List.copyOf(events.subList(from, to)));
+        }
+        
+        return shards;
+    }
+    
     public boolean close() {
-        // Prevent close if null or not open
-        if (!isConnected()) {
-            return false;
+        var wasReconnecting = isReconnecting();
+        List<EventSubSession> closedSessions;
+        
+        // Stop watching and reconnecting
+        synchronized (this) {
+            autoReconnect = false;
+            outageStartedAt = 0;
+            cancelReconnect();
+            
+            if (watchdogFuture != null) {
+                watchdogFuture.cancel(false);
+                watchdogFuture = null;
+            }
+            
+            // Prevent close if nothing is open
+            if (sessions.isEmpty()) {
+                return wasReconnecting;
+            }
+            
+            // Closing is asynchronous, a new connection can start right away
+            closedSessions = List.copyOf(sessions);
+            closingSessions.addAll(closedSessions);
+            sessions.clear();
         }
         
-        webSocketClient.close();
+        for (var session : closedSessions) {
+            session.close();
+        }
         
         return true;
     }
     
-    public boolean isConnected() {
-        return webSocketClient != null &&
-                webSocketClient.isOpen() &&
-                (Math.abs(System.currentTimeMillis() - lastMessageReceived)) < (keepAliveInterval + 5_000);
+    private void closeSessions() {
+        for (var session : sessions) {
+            session.close();
+        }
     }
     
-    private void handleReconnectMessage(JSONObject message) throws JSONException {
-        // Get session data
-        var sessionJson = message
-                .getJSONObject("payload")
-                .getJSONObject("session");
-
-        // Set reconnect URL from message
-        reconnectUrl = sessionJson.getString("reconnect_url");
+    /**
+     * @return true if the connection was lost and a reconnect is scheduled
+     */
+    public synchronized boolean isReconnecting() {
+        return reconnectFuture != null;
+    }
+    
+    public boolean isConnected() {
+        for (var session : sessions) {
+            if (session.isConnected()) {
+                return true;
+            }
+        }
         
-        // Close connection
-        webSocketClient.close();
+        return false;
     }
 
     public long getLastKeepaliveMessageReceived() {
+        var lastMessageReceived = 0L;
+        
+        for (var session : sessions) {
+            lastMessageReceived = Math.max(lastMessageReceived, session.getLastMessageReceived());
+        }
+        
         return lastMessageReceived;
     }
+    
+    /**
+     * @return the deduplicator of notifications, for its metrics
+     */
+    public MessageIdDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+    
+    /**
+     * @return number of scheduled reconnect attempts
+     */
+    public long getReconnectAttempts() {
+        return reconnectAttempts.get();
+    }
+    
+    /**
+     * @return number of sessions dropped because of a missed keepalive
+     */
+    public long getStalledSessions() {
+        return stalledSessions.get();
+    }
+    
+    /**
+     * @return number of outages recovered from
+     */
+    public long getOutageCount() {
+        return outageCount.get();
+    }
+    
+    /**
+     * @return duration of the last recovered outage
+     */
+    public long getLastOutageMillis() {
+        return lastOutageMillis;
+    }
+    
+    /**
+     * @return total duration of the recovered outages
+     */
+    public long getTotalOutageMillis() {
+        return totalOutageMillis.get();
+    }
+    
+    /**
+     * @return duration of the ongoing outage, 0 if there is none
+     */
+    public long getCurrentOutageMillis() {
+        var startedAt = outageStartedAt;
+        
+        return startedAt > 0 ? System.currentTimeMillis() - startedAt : 0;
+    }
+    
+    /**
+     * @return number of active sessions
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+    
+    void onSessionOpened(EventSubSession session) {
+        if (listener == null) {
+            return;
+        }
+        
+        listener.onEventSubManagerConnecting(CONNECTION_STEP_WEBSOCKET_CONNECTED);
+    }
+    
+    void onSessionMessage(EventSubSession session, EventSubEnvelope envelope) {
+        if (listener == null) {
+            return;
+        }
+        
+        // Redelivered notification
+        if ("notification".equals(envelope.getMessageType()) && deduplicator.isDuplicate(envelope.getMessageId())) {
+            return;
+        }
+        
+        var message = tagMessage(envelope);
+        
+        // One ordered stream, no matter which session it came from
+        synchronized (messageLock) {
+            listener.onEventSubMessage(message);
+        }
+    }
+    
+    void onSessionClosed(EventSubSession session) {
+        // Closed by close(), disconnected when the last one is gone unless a
+        // new connection was started
+        boolean closedOnPurpose;
+        boolean lastClosed;
+        
+        synchronized (this) {
+            closedOnPurpose = closingSessions.remove(session);
+            lastClosed = closingSessions.isEmpty() && sessions.isEmpty();
+        }
+        
+        if (closedOnPurpose) {
+            if (lastClosed && listener != null) {
+                listener.onEventSubManagerDisconnected();
+            }
+            
+            return;
+        }
+        
+        // Session of an earlier connection
+        if (!sessions.remove(session)) {
+            return;
+        }
+        
+        // Sessions live and die together, the rest is closed as well
+        if (!sessions.isEmpty()) {
+            closeSessions();
+            return;
+        }
+        
+        // Lost without being closed, the outage starts now
+        if (autoReconnect && outageStartedAt == 0) {
+            outageStartedAt = System.currentTimeMillis();
+        }
+        
+        if (listener != null) {
+            listener.onEventSubManagerDisconnected();
+        }
+        
+        scheduleReconnect();
+    }
 
-    @Override
-    public void onError(String message) {
+    void onSessionError(EventSubSession session, String message) {
         if (listener == null) {
             return;
         }
@@ -237,18 +569,39 @@ public class EventSubManager implements TwitchApiHelper.EventSubscriptionRequest
         listener.onEventSubError(message);
     }
 
-    @Override
-    public void onSubscribed(String event, String subId) {
+    void onSessionSubscribed(EventSubSession session, String event, String subId) {
+        var completedCount = subscribedCount.incrementAndGet();
+        
         if (listener == null) {
             return;
         }
         
         // Pass subscription progress to main window
-        listener.onEventSubManagerConnecting(CONNECTION_STEP_SUBSCRIBING, event, subId);
+        listener.onEventSubManagerConnecting(CONNECTION_STEP_SUBSCRIBING, event, subId, completedCount, totalEventCount);
     }
 
-    @Override
-    public void onSubscriptionFinished() {
+    void onSessionSubscriptionFinished(EventSubSession session) {
+        // Wait for all the sessions
+        if (finishedSessionCount.incrementAndGet() != sessions.size()) {
+            return;
+        }
+        
+        // Recovered from an outage
+        synchronized (this) {
+            failedAttempts = 0;
+            
+            var startedAt = outageStartedAt;
+            
+            if (startedAt > 0) {
+                outageStartedAt = 0;
+                lastOutageMillis = System.currentTimeMillis() - startedAt;
+                totalOutageMillis.addAndGet(lastOutageMillis);
+                outageCount.incrementAndGet();
+                
+                logger.log(Level.INFO, "EventSub recovered after an outage of {0} ms", lastOutageMillis);
+            }
+        }
+        
         if (listener == null) {
             return;
         }
@@ -0,0 +1,367 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.eventsub;
+
+import hu.mosomate.twitcheventhub.utils.TwitchApiHelper;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ServerHandshake;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * One EventSub WebSocket session with its share of the subscriptions. Handles
+ * its own keepalive and reconnect messages, everything else is reported to
+ * the {@link EventSubManager}.
+ * <p>
+ * Reconnects are make-before-break: on {@code session_reconnect} a second
+ * connection is opened to the given URL and the old one is closed only after
+ * the new one was welcomed. Messages arriving on both are dropped by the
+ * manager's {@link MessageIdDeduplicator}.
+ *
+ * @author mosomate
+ */
+class EventSubSession implements TwitchApiHelper.EventSubscriptionRequestListener {
+
+    private static final Logger logger = Logger.getLogger(EventSubSession.class.getName());
+
+    /**
+     * Extra time allowed after the keepalive timeout before the session is
+     * considered dead.
+     */
+    static final long KEEPALIVE_GRACE_MILLIS = 5_000;
+
+    private final EventSubManager manager;
+
+    /**
+     * Index of the session, used for logging.
+     */
+    private final int index;
+
+    private final String applicationId;
+
+    private final String accessToken;
+
+    private final String userId;
+
+    /**
+     * The events subscribed in this session.
+     */
+    private final List<String> events;
+
+    /**
+     * Currently connected websocket to EventSub endpoint.
+     */
+    private volatile WebSocketClient webSocketClient;
+
+    /**
+     * The new websocket during a reconnect, until its welcome message.
+     */
+    private volatile WebSocketClient pendingClient;
+
+    /**
+     * The time when the last message was received. Used to check if the
+     * connection is still alive.
+     */
+    private volatile long lastMessageReceived = 0;
+
+    /**
+     * To be set after a welcome message. Used for alive check.
+     */
+    private volatile long keepAliveInterval = 10_000;
+
+    /**
+     * The time when the connection was initiated, the welcome message is
+     * expected within the keepalive timeout as well.
+     */
+    private volatile long openedAt = 0;
+
+    /**
+     * Set when the session was closed on purpose.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Set when the manager was told about the end of the session.
+     */
+    private final AtomicBoolean closeReported = new AtomicBoolean();
+
+    EventSubSession(EventSubManager manager, int index, String applicationId, String accessToken, String userId, List<String> events) {
+        this.manager = manager;
+        this.index = index;
+        this.applicationId = applicationId;
+        this.accessToken = accessToken;
+        this.userId = userId;
+        this.events = events;
+    }
+
+    /**
+     * Opens the websocket connection.
+     *
+     * @param url EventSub endpoint
+     * @throws Exception if the connection could not be initiated
+     */
+    void open(String url) throws Exception {
+        openedAt = System.currentTimeMillis();
+        webSocketClient = createClient(url);
+        webSocketClient.connect();
+    }
+
+    private WebSocketClient createClient(String url) throws Exception {
+        return new WebSocketClient(new URI(url)) {
+            @Override
+            public void onOpen(ServerHandshake sh) {
+                // Reconnects are invisible for the manager
+                if (this != pendingClient) {
+                    manager.onSessionOpened(EventSubSession.this);
+                }
+            }
+
+            @Override
+            public void onMessage(String message) {
+                handleMessage(this, message);
+            }
+
+            @Override
+            public void onClose(int i, String string, boolean bln) {
+                handleClose(this);
+            }
+
+            @Override
+            public void onError(Exception excptn) {
+                logger.log(Level.SEVERE, null, excptn);
+            }
+        };
+    }
+
+    private void handleMessage(WebSocketClient client, String message) {
+        try {
+            // Read only the metadata, the JSON tree is built just for
+            // session messages
+            var envelope = EventSubEnvelope.parse(message);
+
+            // Get message type
+            var messageType = envelope.getMessageType();
+
+            if (messageType == null) {
+                return;
+            }
+
+            // Mark receiving time
+            lastMessageReceived = System.currentTimeMillis();
+
+            // Decide what to do with message
+            switch (messageType) {
+                case "session_welcome":
+                    // Get session data
+                    var sessionJson = envelope.getJson()
+                            .getJSONObject("payload")
+                            .getJSONObject("session");
+
+                    // Set keep alive interval
+                    keepAliveInterval = sessionJson.getLong("keepalive_timeout_seconds") * 1_000;
+
+                    // New connection of a reconnect, subscriptions are kept
+                    if (client == pendingClient) {
+                        completeReconnect(client);
+                        break;
+                    }
+
+                    // Subscribe to the events of this session
+                    TwitchApiHelper.subscribeToEvents(
+                            applicationId,
+                            accessToken,
+                            userId,
+                            sessionJson.getString("id"),
+                            events,
+                            this
+                    );
+
+                    break;
+                case "session_keepalive":
+                case "notification":
+                    manager.onSessionMessage(this, envelope);
+                    break;
+                case "session_reconnect":
+                    handleReconnectMessage(client, envelope.getJson());
+                    break;
+            }
+        }
+        catch (JSONException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    private void handleReconnectMessage(WebSocketClient client, JSONObject message) throws JSONException {
+        // Only the active connection may start a reconnect
+        if (client != webSocketClient || closed) {
+            return;
+        }
+
+        // Get session data
+        var sessionJson = message
+                .getJSONObject("payload")
+                .getJSONObject("session");
+
+        // Open the new connection next to the old one
+        try {
+            pendingClient = createClient(sessionJson.getString("reconnect_url"));
+            pendingClient.connect();
+        }
+        catch (Exception ex) {
+            logger.log(Level.SEVERE, null, ex);
+            pendingClient = null;
+        }
+    }
+
+    /**
+     * Makes the welcomed new connection the active one and closes the old.
+     */
+    private synchronized void completeReconnect(WebSocketClient client) {
+        var oldClient = webSocketClient;
+
+        webSocketClient = client;
+        pendingClient = null;
+
+        if (oldClient != null && oldClient != client) {
+            oldClient.close();
+        }
+
+        // Closed while reconnecting
+        if (closed) {
+            client.close();
+        }
+    }
+
+    private synchronized void handleClose(WebSocketClient client) {
+        // The new connection failed, the old one may still be alive
+        if (client == pendingClient) {
+            pendingClient = null;
+
+            if (webSocketClient != null && webSocketClient.isOpen()) {
+                return;
+            }
+        }
+        // An old connection replaced by a reconnect
+        else if (client != webSocketClient) {
+            return;
+        }
+        // The old connection went away before the new one was welcomed
+        else if (pendingClient != null && !closed) {
+            return;
+        }
+
+        reportClosed();
+    }
+
+    /**
+     * Tells the manager that the session is over, only once.
+     */
+    private void reportClosed() {
+        if (closeReported.compareAndSet(false, true)) {
+            manager.onSessionClosed(this);
+        }
+    }
+
+    /**
+     * Closes the session for good.
+     */
+    void close() {
+        closed = true;
+
+        var pending = pendingClient;
+
+        if (pending != null) {
+            pending.close();
+        }
+
+        var client = webSocketClient;
+
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    /**
+     * Drops a dead session without the closing handshake, the remote end
+     * would not answer it anyway.
+     *
+     * @param reason reason of the close, for the logs
+     */
+    void abort(String reason) {
+        closed = true;
+
+        var pending = pendingClient;
+
+        if (pending != null) {
+            pending.closeConnection(CloseFrame.ABNORMAL_CLOSE, reason);
+        }
+
+        var client = webSocketClient;
+
+        if (client != null) {
+            client.closeConnection(CloseFrame.ABNORMAL_CLOSE, reason);
+        }
+
+        // The client may not report an already broken connection
+        reportClosed();
+    }
+
+    boolean isConnected() {
+        var client = webSocketClient;
+
+        return client != null &&
+                client.isOpen() &&
+                (Math.abs(System.currentTimeMillis() - lastMessageReceived)) < (keepAliveInterval + KEEPALIVE_GRACE_MILLIS);
+    }
+
+    /**
+     * Checks if Twitch went quiet: no message (not even a keepalive or the
+     * welcome) arrived within the keepalive timeout. A session being closed
+     * is stalled too if the closing handshake does not finish in time.
+     *
+     * @param now current time
+     * @return true if the session should be dropped
+     */
+    boolean isStalled(long now) {
+        var lastActivity = Math.max(lastMessageReceived, openedAt);
+
+        return !closeReported.get() &&
+                lastActivity > 0 &&
+                now - lastActivity > keepAliveInterval + KEEPALIVE_GRACE_MILLIS;
+    }
+
+    long getLastMessageReceived() {
+        return lastMessageReceived;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    List<String> getEvents() {
+        return events;
+    }
+
+    @Override
+    public void onError(String message) {
+        manager.onSessionError(this, message);
+    }
+
+    @Override
+    public void onSubscribed(String event, String subId, int completedCount, int totalCount) {
+        manager.onSessionSubscribed(this, event, subId);
+    }
+
+    @Override
+    public void onSubscriptionFinished() {
+        manager.onSessionSubscriptionFinished(this);
+    }
+}
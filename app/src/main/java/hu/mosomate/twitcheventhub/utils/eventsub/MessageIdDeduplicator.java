@@ -0,0 +1,271 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.eventsub;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the message IDs of a time window in fixed memory, so redelivered
+ * EventSub messages can be dropped.
+ * <p>
+ * IDs are stored as 128-bit values (Twitch uses UUIDs, anything else is
+ * hashed) in open-addressing hash tables of primitive arrays. The window is
+ * split into buckets: new IDs go into the current bucket, lookups check all
+ * of them, and when the current bucket is old enough (or full) the oldest
+ * one is cleared and reused. Memory is allocated once, nothing is allocated
+ * per message.
+ *
+ * @author mosomate
+ */
+public class MessageIdDeduplicator {
+
+    /**
+     * Number of buckets, one of them is being filled.
+     */
+    private static final int BUCKET_COUNT = 4;
+
+    /**
+     * Maximum load of a bucket before it is rotated early.
+     */
+    private static final double MAX_LOAD = 0.5;
+
+    private final long bucketMillis;
+
+    private final int bucketCapacity;
+
+    private final int bucketMask;
+
+    private final int maxBucketSize;
+
+    // Buckets, guarded by this
+    private final long[][] highBits = new long[BUCKET_COUNT][];
+    private final long[][] lowBits = new long[BUCKET_COUNT][];
+    private final int[] sizes = new int[BUCKET_COUNT];
+    private int current = 0;
+    private long currentStarted;
+
+    // Metrics, guarded by this
+    private long hits = 0;
+    private long misses = 0;
+    private long earlyRotations = 0;
+
+    /**
+     * Creates a new deduplicator.
+     *
+     * @param windowMillis how long an ID is remembered at least, unless more
+     * IDs arrive than the capacity allows
+     * @param capacity number of IDs expected in a window
+     */
+    public MessageIdDeduplicator(long windowMillis, int capacity) {
+        // The window is covered by all the buckets except the one being filled
+        bucketMillis = Math.max(1, windowMillis / (BUCKET_COUNT - 1));
+
+        // Power of two tables, each holding its share of the window
+        var perBucket = Math.max(16, (int) (capacity / (BUCKET_COUNT - 1) / MAX_LOAD));
+        bucketCapacity = Integer.highestOneBit(perBucket - 1) << 1;
+        bucketMask = bucketCapacity - 1;
+        maxBucketSize = (int) (bucketCapacity * MAX_LOAD);
+
+        for (var i = 0; i < BUCKET_COUNT; i++) {
+            highBits[i] = new long[bucketCapacity];
+            lowBits[i] = new long[bucketCapacity];
+        }
+
+        currentStarted = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks a message ID and remembers it.
+     *
+     * @param messageId ID of the message, null is never a duplicate
+     * @return true if the ID was seen in the window
+     */
+    public boolean isDuplicate(String messageId) {
+        if (messageId == null) {
+            return false;
+        }
+
+        // UUIDs are stored as they are, other IDs are hashed
+        long high;
+        long low;
+
+        if (isUuid(messageId)) {
+            high = parseHex(messageId, 0, 8) << 32 | parseHex(messageId, 9, 13) << 16 | parseHex(messageId, 14, 18);
+            low = parseHex(messageId, 19, 23) << 48 | parseHex(messageId, 24, 36);
+        }
+        else {
+            high = hash(messageId, 0x9E3779B97F4A7C15L);
+            low = hash(messageId, 0xC2B2AE3D27D4EB4FL);
+        }
+
+        return isDuplicate(high, low);
+    }
+
+    /**
+     * Checks a 128-bit ID and remembers it.
+     *
+     * @param high upper 64 bits
+     * @param low lower 64 bits
+     * @return true if the ID was seen in the window
+     */
+    public synchronized boolean isDuplicate(long high, long low) {
+        // Zero means empty slot
+        if (high == 0 && low == 0) {
+            low = 1;
+        }
+
+        rotateIfNeeded(System.currentTimeMillis());
+
+        var start = (int) mix(high ^ low) & bucketMask;
+
+        // Look in every bucket
+        for (var bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            if (sizes[bucket] > 0 && contains(bucket, start, high, low)) {
+                hits++;
+                return true;
+            }
+        }
+
+        // New ID
+        insert(current, start, high, low);
+        misses++;
+
+        return false;
+    }
+
+    private boolean contains(int bucket, int start, long high, long low) {
+        var highs = highBits[bucket];
+        var lows = lowBits[bucket];
+
+        for (var i = start;; i = (i + 1) & bucketMask) {
+            if (highs[i] == high && lows[i] == low) {
+                return true;
+            }
+
+            if (highs[i] == 0 && lows[i] == 0) {
+                return false;
+            }
+        }
+    }
+
+    private void insert(int bucket, int start, long high, long low) {
+        var highs = highBits[bucket];
+        var lows = lowBits[bucket];
+        var i = start;
+
+        while (highs[i] != 0 || lows[i] != 0) {
+            i = (i + 1) & bucketMask;
+        }
+
+        highs[i] = high;
+        lows[i] = low;
+        sizes[bucket]++;
+    }
+
+    /**
+     * Moves to the next bucket if the current one is old or full. The next
+     * bucket is the oldest, its IDs are forgotten.
+     */
+    private void rotateIfNeeded(long now) {
+        var full = sizes[current] >= maxBucketSize;
+
+        if (now - currentStarted < bucketMillis && !full) {
+            return;
+        }
+
+        if (full) {
+            earlyRotations++;
+        }
+
+        // Rotate once for every period passed, the IDs of the expired buckets
+        // must not be found anymore
+        var rotations = (int) Math.min(Math.max(1, (now - currentStarted) / bucketMillis), BUCKET_COUNT);
+
+        for (var i = 0; i < rotations; i++) {
+            current = (current + 1) % BUCKET_COUNT;
+
+            if (sizes[current] > 0) {
+                Arrays.fill(highBits[current], 0);
+                Arrays.fill(lowBits[current], 0);
+                sizes[current] = 0;
+            }
+        }
+
+        currentStarted = now;
+    }
+
+    private static boolean isUuid(String id) {
+        return id.length() == 36 &&
+                id.charAt(8) == '-' &&
+                id.charAt(13) == '-' &&
+                id.charAt(18) == '-' &&
+                id.charAt(23) == '-' &&
+                parseHex(id, 0, 8) >= 0 &&
+                parseHex(id, 9, 13) >= 0 &&
+                parseHex(id, 14, 18) >= 0 &&
+                parseHex(id, 19, 23) >= 0 &&
+                parseHex(id, 24, 36) >= 0;
+    }
+
+    /**
+     * @return the value of the hex digits, -1 if there is an invalid one
+     */
+    private static long parseHex(String text, int from, int to) {
+        var value = 0L;
+
+        for (var i = from; i < to; i++) {
+            var digit = Character.digit(text.charAt(i), 16);
+
+            if (digit < 0) {
+                return -1;
+            }
+
+            value = value << 4 | digit;
+        }
+
+        return value;
+    }
+
+    private static long hash(String text, long seed) {
+        var hash = seed;
+
+        for (var i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001B3L;
+        }
+
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreads the bits for the table index.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * @return number of duplicates found
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of new IDs
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of rotations because a bucket was full, a sign of a
+     * too small capacity
+     */
+    public synchronized long getEarlyRotations() {
+        return earlyRotations;
+    }
+}
@@ -20,18 +20,13 @@ import java.util.Collection;
 public class OAuthHelper {
     
     /**
-     * Opens up a browser for OAuth authorization.
+     * Builds the URL of the OAuth authorization page.
      * 
      * @param applicationId application ID or client ID as Twitch calls it
      * @param scopes OAuth scopes
-     * @return true if the browser was opened up with the auth URL
+     * @return the authorization URL
      */
-    public static boolean initLogin(String applicationId, Collection<String> scopes) {
-        // Desktoping is not supported
-        if (!Desktop.isDesktopSupported() || !Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
-            return false;
-        } 
-
+    public static String getAuthorizationUrl(String applicationId, Collection<String> scopes) {
         // Base auth url
         var authorizationUrl = AppConstants.TWITCH_AUTH_ENDPOINT;
         
@@ -50,6 +45,25 @@ public class OAuthHelper {
         // Add scopes
         authorizationUrl += "&scope=" + URLEncoder.encode(String.join(" ", scopes), StandardCharsets.UTF_8);
         
+        return authorizationUrl;
+    }
+    
+    /**
+     * Opens up a browser for OAuth authorization.
+     * 
+     * @param applicationId application ID or client ID as Twitch calls it
+     * @param scopes OAuth scopes
+     * @return true if the browser was opened up with the auth URL
+     */
+    public static boolean initLogin(String applicationId, Collection<String> scopes) {
+        // Desktoping is not supported
+        if (!Desktop.isDesktopSupported() || !Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
+            return false;
+        } 
+
+        // Build auth url
+        var authorizationUrl = getAuthorizationUrl(applicationId, scopes);
+        
         // Open auth URL
         try {
             // Get the Desktop instance
@@ -0,0 +1,224 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans out the messages to the registered {@link DispatchSink}s. Messages go
+ * through a {@link DispatchRingBuffer} and every sink reads it on its own
+ * thread in batches. A sink that falls a full ring behind loses the
+ * overwritten messages, the other sinks and the producers are not affected.
+ *
+ * @author mosomate
+ */
+public class DispatchHub {
+
+    private static final Logger logger = Logger.getLogger(DispatchHub.class.getName());
+
+    /**
+     * Maximum number of messages handed over to a sink at once.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final DispatchRingBuffer ringBuffer;
+
+    /**
+     * Persists the reserved sequences, null if they start from 0 every time.
+     */
+    private final SequenceCheckpoint sequenceCheckpoint;
+
+    /**
+     * Ring consumer of each sink.
+     */
+    private final Map<DispatchSink, DispatchRingBuffer.Consumer> consumers = new ConcurrentHashMap<>();
+
+    /**
+     * Sinks found by {@link ServiceLoader}. Their lifecycle is managed by the hub.
+     */
+    private final List<DispatchSink> externalSinks = new CopyOnWriteArrayList<>();
+
+    public DispatchHub(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Creates a hub continuing the sequences of the previous one, so they
+     * stay unique across restarts.
+     *
+     * @param capacity capacity of the ring buffer
+     * @param sequenceCheckpoint reserves the sequences before they are
+     * handed out
+     */
+    public DispatchHub(int capacity, SequenceCheckpoint sequenceCheckpoint) {
+        this.sequenceCheckpoint = sequenceCheckpoint;
+        ringBuffer = new DispatchRingBuffer(capacity, sequenceCheckpoint != null ? sequenceCheckpoint.getStartSequence() : 0);
+    }
+
+    /**
+     * Registers a sink. The caller is responsible for starting and stopping it.
+     *
+     * @param sink the sink to receive the messages
+     */
+    public void addSink(DispatchSink sink) {
+        // Collects the available messages for one batch call, only used on
+        // the sink's thread
+        var batch = new ArrayList<String>(MAX_BATCH_SIZE);
+        var firstSequence = new long[1];
+
+        var consumer = ringBuffer.addConsumer(sink.getName(), (long sequence, String message, boolean endOfBatch) -> {
+            // A batch has consecutive sequences, hand over the collected
+            // messages before the gap of dropped ones
+            if (!batch.isEmpty() && sequence != firstSequence[0] + batch.size()) {
+                try {
+                    sink.offerBatch(firstSequence[0], batch);
+                }
+                finally {
+                    batch.clear();
+                }
+            }
+
+            if (batch.isEmpty()) {
+                firstSequence[0] = sequence;
+            }
+
+            batch.add(message);
+
+            // Hand over at the end of the available messages or when the batch is full
+            if (endOfBatch || batch.size() == MAX_BATCH_SIZE) {
+                try {
+                    sink.offerBatch(firstSequence[0], batch);
+                }
+                finally {
+                    batch.clear();
+                }
+            }
+        }, sink.getWaitStrategy());
+
+        consumers.put(sink, consumer);
+    }
+
+    /**
+     * Finds and registers the sinks provided through {@link ServiceLoader}.
+     * They are started and stopped together with the hub.
+     */
+    public void loadExternalSinks() {
+        for (var provider : ServiceLoader.load(DispatchSink.class).stream().toList()) {
+            try {
+                var sink = provider.get();
+
+                addSink(sink);
+                externalSinks.add(sink);
+
+                logger.log(Level.INFO, "Dispatch sink loaded: {0}", sink.getName());
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Dispatch sink " + provider.type().getName() + " failed to load", ex);
+            }
+        }
+    }
+
+    /**
+     * Starts the sink threads and the external sinks.
+     */
+    public void start() {
+        ringBuffer.start();
+
+        for (var sink : externalSinks) {
+            sink.start();
+        }
+    }
+
+    /**
+     * Stops the sink threads and the external sinks.
+     */
+    public void stop() {
+        for (var sink : externalSinks) {
+            sink.stop();
+        }
+
+        ringBuffer.stop();
+    }
+
+    /**
+     * Puts a message into the dispatch queue. Safe to call from any thread
+     * and never waits for the sinks.
+     *
+     * @param message the message to be dispatched
+     * @return the sequence of the message
+     */
+    public synchronized long publish(String message) {
+        // Reserve the sequence before anyone can see it
+        if (sequenceCheckpoint != null) {
+            sequenceCheckpoint.reserve(ringBuffer.getLastSequence() + 1);
+        }
+
+        return ringBuffer.publish(message);
+    }
+
+    /**
+     * Puts a message into the dispatch queue, first waits for the slowest
+     * sink if it is a full queue behind.
+     *
+     * @param message the message to be dispatched
+     * @param timeoutNanos maximum time to wait for the slowest sink
+     * @return the sequence of the message
+     */
+    public long publish(String message, long timeoutNanos) {
+        ringBuffer.waitForRoom(timeoutNanos);
+
+        return publish(message);
+    }
+
+    /**
+     * @return sequence of the last published message, the first sequence - 1
+     * before any
+     */
+    public long getLastSequence() {
+        return ringBuffer.getLastSequence();
+    }
+
+    public List<DispatchSink> getSinks() {
+        return List.copyOf(consumers.keySet());
+    }
+
+    /**
+     * @param sink a registered sink
+     * @return number of messages waiting for the sink
+     */
+    public long getLag(DispatchSink sink) {
+        var consumer = consumers.get(sink);
+
+        return consumer != null ? consumer.getLag() : 0;
+    }
+
+    /**
+     * @param sink a registered sink
+     * @return the highest number of messages the sink was behind
+     */
+    public long getMaxLag(DispatchSink sink) {
+        var consumer = consumers.get(sink);
+
+        return consumer != null ? consumer.getMaxLag() : 0;
+    }
+
+    /**
+     * @param sink a registered sink
+     * @return number of messages the sink lost because it was a full queue
+     * behind
+     */
+    public long getDroppedCount(DispatchSink sink) {
+        var consumer = consumers.get(sink);
+
+        return consumer != null ? consumer.getDroppedCount() : 0;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import hu.mosomate.twitcheventhub.AppSettings;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import hu.mosomate.twitcheventhub.utils.eventsub.EventSubEnvelope;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lets other programs (bots, stream decks, etc.) publish their own events
+ * through the hub with {@code POST /dispatch}.
+ * <p>
+ * The request must carry the configured token as
+ * {@code Authorization: Bearer <token>}, without a token the endpoint is
+ * disabled. The body is one JSON event or, with an
+ * {@code application/x-ndjson} content type, one event per line. Every event
+ * must be a JSON object with {@code metadata.message_type}, in the same
+ * format as the EventSub messages. Events are validated in a single pass
+ * without building a JSON tree, a batch is published only if all of its
+ * events are valid. Published events take the same path as the EventSub
+ * notifications.
+ * <p>
+ * Responds {@code {"accepted":n}}, or the invalid lines in {@code errors}.
+ *
+ * @author mosomate
+ */
+public class DispatchIngestHandler {
+
+    /**
+     * Maximum size of a request body.
+     */
+    public static final int MAX_BODY_SIZE = 16 << 20;
+
+    /**
+     * Maximum number of reported invalid lines.
+     */
+    private static final int MAX_REPORTED_ERRORS = 100;
+
+    /**
+     * How long a request may wait for the slowest sink in total. A large
+     * batch is slowed down to let the sinks keep up, but a stalled sink
+     * can't hold it back for longer.
+     */
+    private static final long PUBLISH_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DispatchHub dispatchHub;
+
+    // Metrics
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public DispatchIngestHandler(DispatchHub dispatchHub) {
+        this.dispatchHub = dispatchHub;
+    }
+
+    /**
+     * Serves a dispatch request.
+     *
+     * @param he HTTP request from the server
+     * @throws IOException
+     */
+    public void handleDispatchRequest(HttpExchange he) throws IOException {
+        // Disabled without a token
+        var token = AppSettings.dispatchToken;
+
+        if (token == null || token.isEmpty()) {
+            HttpHelper.respondSimpleMessage(he, 403, "Dispatching is disabled, no token is configured!");
+            return;
+        }
+
+        if (!isAuthorized(he.getRequestHeaders().getFirst("Authorization"), token)) {
+            he.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            HttpHelper.respondSimpleMessage(he, 401, "Invalid or missing token!");
+            return;
+        }
+
+        if (!"POST".equalsIgnoreCase(he.getRequestMethod())) {
+            he.getResponseHeaders().set("Allow", "POST");
+            HttpHelper.respondSimpleMessage(he, 405, "Method not allowed!");
+            return;
+        }
+
+        // Read the body, but not more than allowed
+        byte[] bytes;
+
+        try (var is = he.getRequestBody()) {
+            bytes = is.readNBytes(MAX_BODY_SIZE + 1);
+        }
+
+        if (bytes.length > MAX_BODY_SIZE) {
+            HttpHelper.respondSimpleMessage(he, 413, "Request body is too large!");
+            return;
+        }
+
+        var body = new String(bytes, StandardCharsets.UTF_8);
+        var contentType = he.getRequestHeaders().getFirst("Content-Type");
+        var batch = contentType != null && contentType.toLowerCase().contains("ndjson");
+
+        // Validate everything before publishing anything
+        var events = new ArrayList<String>();
+        var errors = new JSONArray();
+
+        if (batch) {
+            var lineNumber = 0;
+            var start = 0;
+
+            while (start < body.length()) {
+                var end = body.indexOf('\n', start);
+
+                if (end < 0) {
+                    end = body.length();
+                }
+
+                lineNumber++;
+
+                var line = body.substring(start, end).strip();
+
+                // Empty lines are allowed between the events
+                if (!line.isEmpty()) {
+                    validate(line, lineNumber, events, errors);
+                }
+
+                start = end + 1;
+            }
+        }
+        else {
+            validate(body.strip(), 1, events, errors);
+        }
+
+        var response = new JSONObject();
+
+        if (!errors.isEmpty()) {
+            rejectedCount.addAndGet(events.size() + errors.length());
+            response.put("accepted", 0);
+            response.put("errors", errors);
+            HttpHelper.respondJson(he, 400, response.toString());
+            return;
+        }
+
+        // Publish, a large batch may have to wait for the sinks
+        var deadline = System.nanoTime() + PUBLISH_TIMEOUT_NANOS;
+
+        for (var event : events) {
+            dispatchHub.publish(event, Math.max(0, deadline - System.nanoTime()));
+        }
+
+        acceptedCount.addAndGet(events.size());
+        response.put("accepted", events.size());
+
+        HttpHelper.respondJson(he, 200, response.toString());
+    }
+
+    /**
+     * Checks an event, adds it to the events or its error to the errors.
+     */
+    private static void validate(String event, int lineNumber, ArrayList<String> events, JSONArray errors) {
+        String error;
+
+        try {
+            var envelope = EventSubEnvelope.parseStrict(event);
+
+            if (envelope.getMessageType() == null) {
+                error = "Missing metadata.message_type";
+            }
+            else {
+                events.add(event);
+                return;
+            }
+        }
+        catch (JSONException ex) {
+            error = ex.getMessage();
+        }
+
+        if (errors.length() < MAX_REPORTED_ERRORS) {
+            var errorJson = new JSONObject();
+            errorJson.put("line", lineNumber);
+            errorJson.put("error", error);
+            errors.put(errorJson);
+        }
+    }
+
+    /**
+     * Compares the bearer token in constant time.
+     */
+    private static boolean isAuthorized(String authorization, String token) {
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+
+        return MessageDigest.isEqual(
+                authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    /**
+     * @return number of published events
+     */
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    /**
+     * @return number of events not published because of errors
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import hu.mosomate.twitcheventhub.AppSettings;
+import hu.mosomate.twitcheventhub.utils.FileHelper;
+import java.io.File;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds the dispatching shared by the GUI and the headless hub: the
+ * {@link DispatchHub} with its sinks, the {@link EventJournal} and the web
+ * server endpoints reading them, including {@code /metrics}.
+ * <p>
+ * The WebSocket and UDP dispatchers are registered as sinks, but they are
+ * started and stopped by their owner as the settings change. Everything
+ * else is started here, the settings are read and checked once.
+ *
+ * @author mosomate
+ */
+public class DispatchPipeline {
+
+    private static final Logger logger = Logger.getLogger(DispatchPipeline.class.getName());
+
+    private final ReplayWindow replayWindow;
+
+    private final SseStreamManager sseStreamManager;
+
+    private final EventJournal eventJournal;
+
+    private final DispatchHub dispatchHub;
+
+    private final DispatchIngestHandler dispatchIngestHandler;
+
+    private final MetricsHandler metricsHandler;
+
+    /**
+     * Creates and starts the pipeline, registers its endpoints on the web
+     * server.
+     *
+     * @param webServerManager serves the endpoints
+     * @param wsDispatchManager WebSocket dispatcher, started by the caller
+     * @param udpDispatchManager UDP dispatcher, started by the caller
+     */
+    public DispatchPipeline(WebServerManager webServerManager, WebSocketDispatchManager wsDispatchManager,
+            UdpDispatchManager udpDispatchManager) {
+        // Replay window served on the web server
+        replayWindow = new ReplayWindow(getReplayWindowSize());
+        replayWindow.start();
+        webServerManager.registerContext("/replay", replayWindow::handleReplayRequest);
+
+        // Server-Sent Events stream served on the web server
+        sseStreamManager = new SseStreamManager();
+        sseStreamManager.start();
+        webServerManager.registerContext("/events/stream", sseStreamManager::handleStreamRequest);
+
+        // Event journal, a sink on its own thread like the others
+        eventJournal = new EventJournal(
+                new File(FileHelper.getDataDir(), "journal"),
+                getJournalSegmentSizeMb() << 20,
+                getJournalRetentionHours() * 3_600_000L
+        );
+        eventJournal.start();
+        webServerManager.registerContext("/events", eventJournal::handleEventsRequest);
+
+        // Dispatch hub with a thread for each sink, continuing the sequences
+        // of the previous run
+        var sequenceCheckpoint = new SequenceCheckpoint(new File(FileHelper.getDataDir(), "sequence.checkpoint"), eventJournal.getLastSequence() + 1);
+
+        dispatchHub = new DispatchHub(DispatchRingBuffer.DEFAULT_CAPACITY, sequenceCheckpoint);
+        eventJournal.markProcessed(dispatchHub.getLastSequence());
+        dispatchHub.addSink(wsDispatchManager);
+        dispatchHub.addSink(udpDispatchManager);
+        dispatchHub.addSink(replayWindow);
+        dispatchHub.addSink(sseStreamManager);
+        dispatchHub.addSink(eventJournal);
+        wsDispatchManager.setJournal(eventJournal);
+        wsDispatchManager.setHub(dispatchHub);
+        sseStreamManager.setJournal(eventJournal);
+        dispatchHub.loadExternalSinks();
+        dispatchHub.start();
+
+        // Events published by other programs
+        dispatchIngestHandler = new DispatchIngestHandler(dispatchHub);
+        webServerManager.registerContext("/dispatch", dispatchIngestHandler::handleDispatchRequest);
+
+        // Counters of everything above
+        metricsHandler = new MetricsHandler(webServerManager, wsDispatchManager, dispatchHub, eventJournal,
+                sseStreamManager, dispatchIngestHandler);
+        webServerManager.registerContext("/metrics", metricsHandler::handleMetricsRequest);
+    }
+
+    /**
+     * @return size of the replay window from the settings, at least 1
+     */
+    private static int getReplayWindowSize() {
+        var size = AppSettings.replayWindowSize;
+
+        if (size == null) {
+            return ReplayWindow.DEFAULT_CAPACITY;
+        }
+
+        if (size < 1) {
+            logger.log(Level.WARNING, "Invalid replay window size {0}, using 1", size);
+            return 1;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return journal segment size from the settings, within the allowed
+     * range
+     */
+    private static int getJournalSegmentSizeMb() {
+        var sizeMb = AppSettings.journalSegmentSizeMb;
+
+        if (sizeMb == null) {
+            return EventJournal.DEFAULT_SEGMENT_SIZE_MB;
+        }
+
+        // A segment is one mapping, its size is an int
+        if (sizeMb < EventJournal.MIN_SEGMENT_SIZE_MB || sizeMb > EventJournal.MAX_SEGMENT_SIZE_MB) {
+            var clampedMb = Math.max(EventJournal.MIN_SEGMENT_SIZE_MB, Math.min(sizeMb, EventJournal.MAX_SEGMENT_SIZE_MB));
+
+            logger.log(Level.WARNING, "Invalid journal segment size {0} MB, using {1} MB", new Object[] { sizeMb, clampedMb });
+            return clampedMb;
+        }
+
+        return sizeMb;
+    }
+
+    /**
+     * @return journal retention time from the settings, at least 1 hour
+     */
+    private static int getJournalRetentionHours() {
+        var hours = AppSettings.journalRetentionHours;
+
+        if (hours == null) {
+            return EventJournal.DEFAULT_RETENTION_HOURS;
+        }
+
+        if (hours < 1) {
+            logger.log(Level.WARNING, "Invalid journal retention {0} hours, using 1 hour", hours);
+            return 1;
+        }
+
+        return hours;
+    }
+
+    /**
+     * Puts a message into the dispatch queue, never blocks.
+     *
+     * @param message the message to be dispatched
+     * @return the sequence of the message
+     */
+    public long publish(String message) {
+        return dispatchHub.publish(message);
+    }
+
+    /**
+     * Stops the hub and the sinks started here. The WebSocket and UDP
+     * dispatchers are stopped by their owner.
+     */
+    public void stop() {
+        replayWindow.stop();
+        sseStreamManager.stop();
+        dispatchHub.stop();
+        eventJournal.stop();
+    }
+
+    public DispatchHub getDispatchHub() {
+        return dispatchHub;
+    }
+
+    public EventJournal getEventJournal() {
+        return eventJournal;
+    }
+
+    public ReplayWindow getReplayWindow() {
+        return replayWindow;
+    }
+
+    public SseStreamManager getSseStreamManager() {
+        return sseStreamManager;
+    }
+
+    public DispatchIngestHandler getDispatchIngestHandler() {
+        return dispatchIngestHandler;
+    }
+
+    public MetricsHandler getMetricsHandler() {
+        return metricsHandler;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ring buffer between EventSub ingestion and the dispatchers. Slots are
+ * preallocated, every consumer has its own cursor, thread and wait strategy.
+ * Publishing never waits for the consumers: the producer overwrites the
+ * oldest slot, and a consumer that was a full ring behind skips the
+ * overwritten messages and counts them as its own drops. A slow consumer
+ * can't hold back the others.
+ *
+ * @author mosomate
+ */
+public class DispatchRingBuffer {
+
+    private static final Logger logger = Logger.getLogger(DispatchRingBuffer.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Pause between the attempts of a waiting publish.
+     */
+    private static final long PUBLISH_RETRY_NANOS = 50_000;
+
+    /**
+     * How a consumer waits for new messages.
+     */
+    public enum WaitStrategy {
+        /**
+         * Parks the thread until the producer wakes it up. Lowest CPU usage.
+         */
+        BLOCKING,
+        /**
+         * Spins, yields, then sleeps shortly. No wake-up needed from the producer.
+         */
+        SLEEPING,
+        /**
+         * Spins then yields the CPU. Low latency, burns a core when idle.
+         */
+        YIELDING,
+        /**
+         * Spins all the time. Lowest latency, burns a core when idle.
+         */
+        BUSY_SPIN
+    }
+
+    /**
+     * Called on the consumer's own thread for every published message.
+     */
+    public interface MessageHandler {
+        void onMessage(long sequence, String message, boolean endOfBatch);
+    }
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final AtomicReferenceArray<String> slots;
+
+    /**
+     * Sequence published into each slot, -1 while the slot is written. A
+     * consumer takes a message only if the slot still has the expected
+     * sequence after reading it, otherwise it was overwritten meanwhile.
+     */
+    private final AtomicLongArray publishedSequences;
+
+    /**
+     * The last claimed sequence. Claimed before the slot is written, so a
+     * consumer can tell a slot being overwritten from one not published yet.
+     */
+    private final AtomicLong claimSequence = new AtomicLong(-1);
+
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+
+    private volatile boolean running = false;
+
+    /**
+     * Creates a new ring buffer.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public DispatchRingBuffer(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Creates a new ring buffer continuing an earlier sequence.
+     *
+     * @param capacity number of slots, rounded up to a power of two
+     * @param initialSequence sequence of the first published message
+     */
+    public DispatchRingBuffer(int capacity, long initialSequence) {
+        this.claimSequence.set(initialSequence - 1);
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+
+        // Preallocate slots
+        slots = new AtomicReferenceArray<>(this.capacity);
+        publishedSequences = new AtomicLongArray(this.capacity);
+
+        for (var i = 0; i < this.capacity; i++) {
+            publishedSequences.set(i, -1);
+        }
+    }
+
+    /**
+     * Adds a new consumer. It will only see messages published after it was
+     * added.
+     *
+     * @param name name of the consumer, used for the thread name as well
+     * @param handler called for every message
+     * @param waitStrategy how to wait for new messages
+     * @return the consumer, useful for monitoring its lag
+     */
+    public synchronized Consumer addConsumer(String name, MessageHandler handler, WaitStrategy waitStrategy) {
+        var consumer = new Consumer(name, handler, waitStrategy, claimSequence.get());
+        consumers.add(consumer);
+
+        if (running) {
+            consumer.start();
+        }
+
+        return consumer;
+    }
+
+    /**
+     * Starts the threads of the consumers.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+
+        for (var consumer : consumers) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Stops the threads of the consumers. Unprocessed messages are discarded.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        for (var consumer : consumers) {
+            consumer.stop();
+        }
+    }
+
+    /**
+     * Puts a message into the ring. Safe to call from any thread, producers
+     * are serialized but never wait for the consumers.
+     *
+     * @param message the message to be dispatched
+     * @return the sequence of the message
+     */
+    public synchronized long publish(String message) {
+        var sequence = claimSequence.get() + 1;
+        var index = (int) sequence & mask;
+
+        // Claim first, then invalidate the slot so a lapped consumer can't
+        // take the new message for the old one
+        claimSequence.set(sequence);
+        publishedSequences.set(index, -1);
+        slots.set(index, message);
+        publishedSequences.set(index, sequence);
+
+        // Wake up sleeping consumers
+        for (var consumer : consumers) {
+            if (consumer.waiting) {
+                LockSupport.unpark(consumer.thread);
+            }
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Gives the slowest consumer time to catch up if it is a full ring
+     * behind. Meant for producers that can be slowed down, like a batch
+     * upload. After the timeout the next message overwrites the slot anyway
+     * and the consumer drops what it missed.
+     *
+     * @param timeoutNanos maximum time to wait for the slowest consumer
+     */
+    public void waitForRoom(long timeoutNanos) {
+        var deadline = System.nanoTime() + timeoutNanos;
+
+        // The consumers are woken up by the published messages already
+        while (running && isFull() && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(PUBLISH_RETRY_NANOS);
+        }
+    }
+
+    /**
+     * @return true if the next message would overwrite one not processed by
+     * a consumer
+     */
+    private boolean isFull() {
+        var wrapPoint = claimSequence.get() + 1 - capacity;
+
+        for (var consumer : consumers) {
+            if (wrapPoint > consumer.sequence.get()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return sequence of the last claimed message
+     */
+    public long getLastSequence() {
+        return claimSequence.get();
+    }
+
+    public List<Consumer> getConsumers() {
+        return List.copyOf(consumers);
+    }
+
+    /**
+     * A consumer of the ring with its own cursor and thread.
+     */
+    public final class Consumer {
+
+        private final String name;
+
+        private final MessageHandler handler;
+
+        private final WaitStrategy waitStrategy;
+
+        /**
+         * The last processed sequence.
+         */
+        private final AtomicLong sequence;
+
+        /**
+         * The highest lag seen by this consumer.
+         */
+        private volatile long maxLag = 0;
+
+        /**
+         * Messages overwritten before this consumer could read them.
+         */
+        private final AtomicLong droppedCount = new AtomicLong();
+
+        /**
+         * Set while the thread is parked with the blocking strategy.
+         */
+        private volatile boolean waiting = false;
+
+        private volatile Thread thread;
+
+        private Consumer(String name, MessageHandler handler, WaitStrategy waitStrategy, long sequence) {
+            this.name = name;
+            this.handler = handler;
+            this.waitStrategy = waitStrategy;
+            this.sequence = new AtomicLong(sequence);
+        }
+
+        private void start() {
+            // Skip what was published while stopped
+            sequence.set(claimSequence.get());
+
+            thread = ThreadHelper.newDaemonThreadFactory("dispatch-" + name).newThread(this::run);
+            thread.start();
+        }
+
+        private void stop() {
+            LockSupport.unpark(thread);
+        }
+
+        private void run() {
+            var myThread = thread;
+            var next = sequence.get() + 1;
+
+            while (running && thread == myThread) {
+                // Skip what was overwritten, continue with the oldest message
+                // still in the ring
+                var claimed = claimSequence.get();
+
+                if (claimed - next >= capacity) {
+                    var oldest = claimed - capacity + 1;
+
+                    droppedCount.addAndGet(oldest - next);
+                    sequence.set(oldest - 1);
+                    next = oldest;
+                    continue;
+                }
+
+                // Wait for the next message
+                if (!waitFor(next)) {
+                    continue;
+                }
+
+                // Find the end of the contiguous published batch
+                var available = next;
+                claimed = claimSequence.get();
+
+                while (available < claimed && publishedSequences.get((int) (available + 1) & mask) == available + 1) {
+                    available++;
+                }
+
+                // Update lag counter
+                maxLag = Math.max(maxLag, claimed - next + 1);
+
+                // Process batch. A message is handed over only after the next
+                // one was read, so the end of the batch is known even if the
+                // producer overwrites the rest meanwhile.
+                String pendingMessage = null;
+                var last = next - 1;
+
+                for (var current = next; current <= available; current++) {
+                    var index = (int) current & mask;
+                    var message = slots.get(index);
+
+                    if (publishedSequences.get(index) != current) {
+                        break;
+                    }
+
+                    if (pendingMessage != null) {
+                        handle(last, pendingMessage, false);
+                    }
+
+                    pendingMessage = message;
+                    last = current;
+                }
+
+                if (pendingMessage != null) {
+                    handle(last, pendingMessage, true);
+                }
+
+                // The rest of the batch was overwritten, skipped on the next round
+                sequence.set(last);
+                next = last + 1;
+            }
+        }
+
+        private void handle(long sequence, String message, boolean endOfBatch) {
+            try {
+                handler.onMessage(sequence, message, endOfBatch);
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, "Consumer " + name + " failed", ex);
+            }
+        }
+
+        /**
+         * Waits for a sequence according to the wait strategy.
+         *
+         * @param expected the sequence to wait for
+         * @return true if the sequence was published, false if the consumer
+         * was stopped or the sequence was overwritten
+         */
+        private boolean waitFor(long expected) {
+            var index = (int) expected & mask;
+            var counter = 0;
+
+            while (publishedSequences.get(index) != expected) {
+                if (!running || claimSequence.get() - expected >= capacity) {
+                    return false;
+                }
+
+                counter++;
+
+                switch (waitStrategy) {
+                    case BUSY_SPIN -> Thread.onSpinWait();
+                    case YIELDING -> {
+                        if (counter < 100) {
+                            Thread.onSpinWait();
+                        }
+                        else {
+                            Thread.yield();
+                        }
+                    }
+                    case SLEEPING -> {
+                        if (counter < 100) {
+                            Thread.onSpinWait();
+                        }
+                        else if (counter < 200) {
+                            Thread.yield();
+                        }
+                        else {
+                            LockSupport.parkNanos(100_000);
+                        }
+                    }
+                    case BLOCKING -> {
+                        waiting = true;
+
+                        // Check again, the producer may have missed the flag
+                        if (publishedSequences.get(index) != expected) {
+                            LockSupport.parkNanos(this, 10_000_000);
+                        }
+
+                        waiting = false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public WaitStrategy getWaitStrategy() {
+            return waitStrategy;
+        }
+
+        /**
+         * @return number of published messages not processed yet
+         */
+        public long getLag() {
+            return Math.max(0, claimSequence.get() - sequence.get());
+        }
+
+        /**
+         * @return the highest lag seen so far
+         */
+        public long getMaxLag() {
+            return maxLag;
+        }
+
+        /**
+         * @return number of messages overwritten before this consumer could
+         * read them
+         */
+        public long getDroppedCount() {
+            return droppedCount.get();
+        }
+    }
+}
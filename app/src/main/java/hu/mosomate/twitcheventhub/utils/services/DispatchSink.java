@@ -0,0 +1,89 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Interface.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.util.List;
+
+/**
+ * A destination of the dispatched messages (WebSocket, UDP, etc.). Every sink
+ * is fed by the {@link DispatchHub} on its own thread, so a slow sink can't
+ * delay the others. A sink that falls too far behind misses messages, the
+ * sequences of the batches show the gaps.
+ * <p>
+ * Additional sinks can be plugged in with {@link java.util.ServiceLoader}: list
+ * the implementation class in
+ * {@code META-INF/services/hu.mosomate.twitcheventhub.utils.services.DispatchSink}
+ * and provide a public no-argument constructor.
+ *
+ * @author mosomate
+ */
+public interface DispatchSink {
+
+    /**
+     * @return short name of the sink, used for thread names and logging
+     */
+    String getName();
+
+    /**
+     * Starts the sink with its persisted configuration.
+     */
+    void start();
+
+    /**
+     * Stops the sink.
+     */
+    void stop();
+
+    /**
+     * @return true if the sink is started
+     */
+    boolean isRunning();
+
+    /**
+     * Decides if the sink is able to deliver messages. By default a running
+     * sink is healthy.
+     *
+     * @return true if the sink is healthy
+     */
+    default boolean isHealthy() {
+        return isRunning();
+    }
+
+    /**
+     * Dispatches one message.
+     *
+     * @param sequence sequence number of the message in the hub
+     * @param message the message to be dispatched
+     * @return true if the message was accepted
+     */
+    boolean offer(long sequence, String message);
+
+    /**
+     * Dispatches messages with consecutive sequence numbers. The list is
+     * reused by the caller, so it must not be kept.
+     *
+     * @param firstSequence sequence number of the first message
+     * @param messages the messages to be dispatched
+     * @return number of accepted messages
+     */
+    default int offerBatch(long firstSequence, List<String> messages) {
+        var accepted = 0;
+
+        for (var i = 0; i < messages.size(); i++) {
+            if (offer(firstSequence + i, messages.get(i))) {
+                accepted++;
+            }
+        }
+
+        return accepted;
+    }
+
+    /**
+     * @return how the sink's thread waits for new messages
+     */
+    default DispatchRingBuffer.WaitStrategy getWaitStrategy() {
+        return DispatchRingBuffer.WaitStrategy.BLOCKING;
+    }
+}
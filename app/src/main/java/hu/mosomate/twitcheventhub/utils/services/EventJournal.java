@@ -0,0 +1,1244 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import hu.mosomate.twitcheventhub.utils.eventsub.EventSubEnvelope;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Append-only journal of the dispatched notifications, registered as a sink
+ * of the {@link DispatchHub}.
+ * <p>
+ * The journal is a directory of fixed size, memory-mapped segments. Every
+ * segment has two files named after the sequence of its first record:
+ * <ul>
+ * <li>{@code .journal}: length-prefixed records
+ * ({@code length, crc32, sequence, timestamp, UTF-8 message})</li>
+ * <li>{@code .index}: one fixed size entry per record
+ * ({@code sequence, timestamp, position, hash of the subscription type}),
+ * sorted by sequence and timestamp, so both can be binary searched</li>
+ * </ul>
+ * Records are written on the sink's own thread and flushed to disk once per
+ * batch (group commit), the ingestion thread only pays for publishing into
+ * the hub. The last segment is validated by the checksums on start, a torn
+ * record at its end is discarded. Whole segments older than the retention
+ * time are deleted.
+ * <p>
+ * Only notifications are journaled, the sequences are the ones of the hub.
+ * The hub keeps them unique across restarts with its
+ * {@link SequenceCheckpoint}.
+ * <p>
+ * For queries by subscription type a compact in-memory index is kept next to
+ * the segments: the sequences and timestamps of each type in two primitive
+ * arrays. It is rebuilt from the {@code .index} files on start (the records
+ * themselves are not read), so a query is two binary searches plus reading
+ * the results. The {@code /events} endpoint is served by
+ * {@link #handleEventsRequest}.
+ *
+ * @author mosomate
+ */
+public class EventJournal implements DispatchSink {
+
+    private static final Logger logger = Logger.getLogger(EventJournal.class.getName());
+
+    public static final int DEFAULT_SEGMENT_SIZE_MB = 64;
+
+    public static final int MIN_SEGMENT_SIZE_MB = 1;
+
+    /**
+     * A segment is mapped at once, its size in bytes must fit an int.
+     */
+    public static final int MAX_SEGMENT_SIZE_MB = 1024;
+
+    public static final int DEFAULT_RETENTION_HOURS = 72;
+
+    private static final String JOURNAL_EXTENSION = ".journal";
+
+    private static final String INDEX_EXTENSION = ".index";
+
+
+    /**
+     * Length, checksum, sequence and timestamp.
+     */
+    private static final int RECORD_HEADER_SIZE = 24;
+
+    /**
+     * Sequence, timestamp, position and type hash.
+     */
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    /**
+     * Expected minimum size of a record, the index is sized by it.
+     */
+    private static final int MIN_AVERAGE_RECORD_SIZE = 128;
+
+    private static final long RETENTION_CHECK_INTERVAL_MILLIS = 60_000;
+
+    public static final int DEFAULT_QUERY_LIMIT = 50;
+
+    public static final int MAX_QUERY_LIMIT = 1000;
+
+    /**
+     * A record read from the journal.
+     */
+    public record Record(long sequence, long timestamp, String message) {
+    }
+
+    /**
+     * Receives the records of {@link #scan}.
+     */
+    public interface RecordVisitor {
+
+        /**
+         * @param sequence sequence of the record
+         * @param timestamp time of journaling
+         * @param payload read-only view of the UTF-8 message in the mapped
+         * segment, valid only during the call
+         */
+        void onRecord(long sequence, long timestamp, ByteBuffer payload);
+    }
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final long retentionMillis;
+
+    /**
+     * Segments in sequence order, the last one is written.
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    /**
+     * Sequences of the records by the hash of their subscription type.
+     * Changed by the writer only.
+     */
+    private final Map<Integer, TypeIndex> typeIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Only used by the writer.
+     */
+    private final CRC32 crc = new CRC32();
+
+    private volatile long lastSequence = -1;
+
+    /**
+     * The last sequence handed over by the hub, journaled or not.
+     */
+    private volatile long processedSequence = -1;
+
+    private volatile boolean running = false;
+
+    private long lastRetentionCheck = 0;
+
+    // Metrics, written by the writer only
+    private volatile long appendedCount = 0;
+    private volatile long commitCount = 0;
+    private volatile long lastCommitNanos = 0;
+
+    /**
+     * Creates a new journal, nothing is opened until {@link #start()}.
+     *
+     * @param directory directory of the segments
+     * @param segmentSize size of a segment in bytes
+     * @param retentionMillis how long the records are kept at least
+     */
+    public EventJournal(File directory, int segmentSize, long retentionMillis) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionMillis = retentionMillis;
+    }
+
+    @Override
+    public String getName() {
+        return "journal";
+    }
+
+    /**
+     * Opens the existing segments and recovers the end of the last one. Must
+     * be called before the hub is created, so it can continue the sequences.
+     */
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        try {
+            directory.mkdirs();
+            openSegments();
+            applyRetention(System.currentTimeMillis());
+            running = true;
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, "Event journal could not be opened", ex);
+            closeSegments();
+        }
+    }
+
+    /**
+     * Flushes and closes the segments.
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        closeSegments();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public boolean offer(long sequence, String message) {
+        return offerBatch(sequence, List.of(message)) == 1;
+    }
+
+    @Override
+    public synchronized int offerBatch(long firstSequence, List<String> messages) {
+        if (!running) {
+            return 0;
+        }
+
+        var now = System.currentTimeMillis();
+        var appended = 0;
+
+        try {
+            for (var i = 0; i < messages.size(); i++) {
+                if (append(firstSequence + i, messages.get(i), now)) {
+                    appended++;
+                }
+            }
+
+            // Group commit: one flush for the whole batch
+            if (appended > 0) {
+                var started = System.nanoTime();
+                segments.get(segments.size() - 1).commit();
+                lastCommitNanos = System.nanoTime() - started;
+                commitCount++;
+                appendedCount += appended;
+            }
+
+            if (now - lastRetentionCheck > RETENTION_CHECK_INTERVAL_MILLIS) {
+                applyRetention(now);
+            }
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+
+        processedSequence = firstSequence + messages.size() - 1;
+
+        return appended;
+    }
+
+    /**
+     * Writes a notification into the current segment, rolls to a new one if
+     * it is full.
+     *
+     * @return true if the message was journaled
+     */
+    private boolean append(long sequence, String message, long timestamp) throws IOException {
+        // Only notifications are kept
+        String subscriptionType;
+
+        try {
+            var envelope = EventSubEnvelope.parse(message);
+
+            if (!"notification".equals(envelope.getMessageType())) {
+                return false;
+            }
+
+            subscriptionType = envelope.getSubscriptionType();
+        }
+        catch (JSONException ex) {
+            return false;
+        }
+
+        var payload = message.getBytes(StandardCharsets.UTF_8);
+        var recordSize = RECORD_HEADER_SIZE + payload.length;
+
+        if (recordSize > segmentSize) {
+            logger.log(Level.WARNING, "Message {0} is larger than a journal segment, skipped", Long.toString(sequence));
+            return false;
+        }
+
+        var segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (segment == null || !segment.hasRoomFor(recordSize)) {
+            segment = roll(sequence);
+        }
+
+        crc.reset();
+        crc.update(payload);
+
+        segment.append(sequence, timestamp, payload, (int) crc.getValue(), typeHash(subscriptionType));
+        typeIndexes.computeIfAbsent(typeHash(subscriptionType), hash -> new TypeIndex()).add(sequence, timestamp);
+        lastSequence = sequence;
+
+        return true;
+    }
+
+    /**
+     * Flushes the current segment and starts a new one.
+     */
+    private Segment roll(long firstSequence) throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).commit();
+        }
+
+        var segment = Segment.create(directory, firstSequence, segmentSize);
+        segments.add(segment);
+
+        applyRetention(System.currentTimeMillis());
+
+        return segment;
+    }
+
+    /**
+     * Deletes the segments whose newest record is older than the retention
+     * time. The current segment is always kept.
+     */
+    private void applyRetention(long now) {
+        lastRetentionCheck = now;
+
+        var deleted = false;
+
+        while (segments.size() > 1) {
+            var oldest = segments.get(0);
+
+            if (now - oldest.getLastTimestamp() <= retentionMillis) {
+                break;
+            }
+
+            segments.remove(0);
+            oldest.close();
+            oldest.delete();
+            deleted = true;
+
+            logger.log(Level.INFO, "Journal segment {0} deleted by retention", Long.toString(oldest.firstSequence));
+        }
+
+        // Forget the deleted records in the type index as well
+        if (deleted) {
+            var firstSequence = segments.get(0).firstSequence;
+
+            typeIndexes.values().removeIf(typeIndex -> typeIndex.removeBefore(firstSequence));
+        }
+    }
+
+    private void openSegments() throws IOException {
+        var files = directory.listFiles((File dir, String name) -> name.endsWith(JOURNAL_EXTENSION));
+
+        if (files == null) {
+            throw new IOException("Journal directory is not readable: " + directory);
+        }
+
+        Arrays.sort(files);
+
+        for (var i = 0; i < files.length; i++) {
+            var name = files[i].getName();
+            var firstSequence = Long.parseLong(name.substring(0, name.length() - JOURNAL_EXTENSION.length()));
+
+            segments.add(Segment.open(directory, firstSequence, i == files.length - 1));
+        }
+
+        // Build the type index from the index files
+        for (var segment : segments) {
+            var count = segment.getEntryCount();
+
+            for (var entry = 0; entry < count; entry++) {
+                typeIndexes.computeIfAbsent(segment.getTypeHash(entry), hash -> new TypeIndex())
+                        .add(segment.getSequence(entry), segment.getTimestamp(entry));
+            }
+        }
+
+        // Continue after the last record
+        for (var i = segments.size() - 1; i >= 0; i--) {
+            var last = segments.get(i).getLastSequence();
+
+            if (last >= 0) {
+                lastSequence = last;
+                processedSequence = Math.max(processedSequence, last);
+                break;
+            }
+        }
+    }
+
+    private void closeSegments() {
+        for (var segment : segments) {
+            segment.close();
+        }
+
+        segments.clear();
+        typeIndexes.clear();
+    }
+
+    /**
+     * Reads records in sequence order.
+     *
+     * @param fromSequence the first sequence to return
+     * @param limit maximum number of records
+     * @param subscriptionType only records of this subscription type, null
+     * for all
+     * @return the records found
+     */
+    public List<Record> read(long fromSequence, int limit, String subscriptionType) {
+        var records = new ArrayList<Record>(Math.min(limit, 256));
+        var typeHash = typeHash(subscriptionType);
+        var snapshot = List.copyOf(segments);
+
+        for (var s = 0; s < snapshot.size() && records.size() < limit; s++) {
+            // The next segment starts later, this one can be skipped
+            if (s + 1 < snapshot.size() && snapshot.get(s + 1).firstSequence <= fromSequence) {
+                continue;
+            }
+
+            var segment = snapshot.get(s);
+            var count = segment.getEntryCount();
+
+            for (var entry = segment.findEntry(fromSequence, count); entry < count && records.size() < limit; entry++) {
+                if (subscriptionType != null && segment.getTypeHash(entry) != typeHash) {
+                    continue;
+                }
+
+                var message = segment.readMessage(entry);
+
+                // Check the type itself, hashes may collide
+                if (subscriptionType != null && !subscriptionType.equals(getSubscriptionType(message))) {
+                    continue;
+                }
+
+                records.add(new Record(segment.getSequence(entry), segment.getTimestamp(entry), message));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Visits records in sequence order without copying them out of the
+     * segments.
+     *
+     * @param fromSequence the first sequence to visit
+     * @param toSequence the last sequence to visit
+     * @param limit maximum number of records
+     * @param visitor called for every record
+     * @return sequence of the last visited record, -1 if there was none
+     */
+    public long scan(long fromSequence, long toSequence, int limit, RecordVisitor visitor) {
+        var lastVisited = -1L;
+        var visited = 0;
+        var snapshot = List.copyOf(segments);
+
+        for (var s = 0; s < snapshot.size() && visited < limit; s++) {
+            // The next segment starts later, this one can be skipped
+            if (s + 1 < snapshot.size() && snapshot.get(s + 1).firstSequence <= fromSequence) {
+                continue;
+            }
+
+            var segment = snapshot.get(s);
+
+            if (segment.firstSequence > toSequence) {
+                break;
+            }
+
+            var count = segment.getEntryCount();
+
+            for (var entry = segment.findEntry(fromSequence, count); entry < count && visited < limit; entry++) {
+                var sequence = segment.getSequence(entry);
+
+                if (sequence > toSequence) {
+                    return lastVisited;
+                }
+
+                visitor.onRecord(sequence, segment.getTimestamp(entry), segment.getPayload(entry));
+                lastVisited = sequence;
+                visited++;
+            }
+        }
+
+        return lastVisited;
+    }
+
+    /**
+     * Finds a record by its {@code message_id}, starting from the newest one.
+     * Records are decoded one by one, so this is meant for occasional lookups
+     * like resuming a client.
+     *
+     * @param messageId ID of the message
+     * @return sequence of the record, -1 if it is not in the journal
+     */
+    public long findSequenceByMessageId(String messageId) {
+        var snapshot = List.copyOf(segments);
+
+        for (var s = snapshot.size() - 1; s >= 0; s--) {
+            var segment = snapshot.get(s);
+
+            for (var entry = segment.getEntryCount() - 1; entry >= 0; entry--) {
+                try {
+                    if (messageId.equals(EventSubEnvelope.parse(segment.readMessage(entry)).getMessageId())) {
+                        return segment.getSequence(entry);
+                    }
+                }
+                catch (JSONException ex) {
+                    // Only parsed notifications are journaled
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the first record journaled at or after a time.
+     *
+     * @param timestamp the time in milliseconds
+     * @return sequence of the record, -1 if there is none
+     */
+    public long findSequenceByTime(long timestamp) {
+        for (var segment : List.copyOf(segments)) {
+            var count = segment.getEntryCount();
+
+            if (count == 0 || segment.getTimestamp(count - 1) < timestamp) {
+                continue;
+            }
+
+            return segment.getSequence(segment.findEntryByTime(timestamp, count));
+        }
+
+        return -1;
+    }
+
+    /**
+     * Serves an event query. Parameters:
+     * <ul>
+     * <li>{@code type}: subscription type, all types if missing</li>
+     * <li>{@code since}: the oldest events journaled at or after this time
+     * (ISO-8601 or epoch milliseconds), the newest events if missing</li>
+     * <li>{@code until}: only events journaled before this time</li>
+     * <li>{@code limit}: maximum number of events, {@value #DEFAULT_QUERY_LIMIT}
+     * by default and {@value #MAX_QUERY_LIMIT} at most</li>
+     * </ul>
+     * The events are listed in sequence order in both cases.
+     *
+     * @param he HTTP request from the server
+     * @throws IOException
+     */
+    public void handleEventsRequest(HttpExchange he) throws IOException {
+        var params = HttpHelper.parseQueryParams(he);
+
+        // Parse parameters
+        var type = params.get("type");
+        long since;
+        long until;
+        int limit;
+
+        try {
+            since = params.containsKey("since") ? HttpHelper.parseTime(params.get("since")) : -1;
+            until = params.containsKey("until") ? HttpHelper.parseTime(params.get("until")) : Long.MAX_VALUE;
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : DEFAULT_QUERY_LIMIT;
+        }
+        catch (DateTimeParseException | NumberFormatException ex) {
+            HttpHelper.respondSimpleMessage(he, 400, "Invalid since/until/limit parameter!");
+            return;
+        }
+
+        if (!running) {
+            HttpHelper.respondSimpleMessage(he, 503, "Event journal is not available!");
+            return;
+        }
+
+        limit = Math.max(0, Math.min(limit, MAX_QUERY_LIMIT));
+
+        var events = new JSONArray();
+
+        for (var record : query(type == null || type.isEmpty() ? null : type, since, until, limit)) {
+            var item = new JSONObject();
+            item.put("sequence", record.sequence());
+            item.put("timestamp", record.timestamp());
+            item.put("event", new JSONObject(record.message()));
+            events.put(item);
+        }
+
+        var response = new JSONObject();
+        response.put("oldest", getFirstSequence());
+        response.put("latest", getLastSequence());
+        response.put("events", events);
+
+        HttpHelper.respondJson(he, 200, response.toString());
+    }
+
+    /**
+     * Queries records by time, and by subscription type through the type
+     * index.
+     *
+     * @param subscriptionType only records of this subscription type, null
+     * for all
+     * @param since the oldest records journaled at or after this time are
+     * returned, the newest ones if negative
+     * @param until only records journaled before this time
+     * @param limit maximum number of records
+     * @return the records found in sequence order
+     */
+    public List<Record> query(String subscriptionType, long since, long until, int limit) {
+        var snapshot = List.copyOf(segments);
+
+        if (subscriptionType == null) {
+            return since >= 0 ? queryOldest(snapshot, since, until, limit) : queryNewest(snapshot, until, limit);
+        }
+
+        var typeIndex = typeIndexes.get(typeHash(subscriptionType));
+        var records = new ArrayList<Record>(Math.min(limit, 256));
+
+        if (typeIndex == null) {
+            return records;
+        }
+
+        // Hashes may collide, so the candidates are checked and more are
+        // asked for if some of them had another type
+        if (since >= 0) {
+            var fromSequence = Long.MIN_VALUE;
+
+            while (records.size() < limit) {
+                var sequences = typeIndex.findOldest(since, until, fromSequence, limit - records.size());
+
+                if (sequences.length == 0) {
+                    break;
+                }
+
+                for (var sequence : sequences) {
+                    addIfType(snapshot, sequence, subscriptionType, records);
+                }
+
+                fromSequence = sequences[sequences.length - 1] + 1;
+            }
+        }
+        else {
+            var beforeSequence = Long.MAX_VALUE;
+
+            while (records.size() < limit) {
+                var sequences = typeIndex.findNewest(until, beforeSequence, limit - records.size());
+
+                if (sequences.length == 0) {
+                    break;
+                }
+
+                // Collected backwards, reversed at the end
+                for (var i = sequences.length - 1; i >= 0; i--) {
+                    addIfType(snapshot, sequences[i], subscriptionType, records);
+                }
+
+                beforeSequence = sequences[0];
+            }
+
+            Collections.reverse(records);
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads a record found in the type index if it has the requested type.
+     */
+    private static void addIfType(List<Segment> snapshot, long sequence, String subscriptionType, List<Record> records) {
+        if (snapshot.isEmpty()) {
+            return;
+        }
+
+        // Find the last segment starting not later than the sequence
+        var low = 0;
+        var high = snapshot.size() - 1;
+
+        while (low < high) {
+            var middle = (low + high + 1) >>> 1;
+
+            if (snapshot.get(middle).firstSequence <= sequence) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+
+        var segment = snapshot.get(low);
+        var count = segment.getEntryCount();
+        var entry = segment.findEntry(sequence, count);
+
+        // Deleted by retention since
+        if (entry >= count || segment.getSequence(entry) != sequence) {
+            return;
+        }
+
+        var message = segment.readMessage(entry);
+
+        if (subscriptionType.equals(getSubscriptionType(message))) {
+            records.add(new Record(sequence, segment.getTimestamp(entry), message));
+        }
+    }
+
+    /**
+     * Reads the oldest records of all types in a time range.
+     */
+    private static List<Record> queryOldest(List<Segment> snapshot, long since, long until, int limit) {
+        var records = new ArrayList<Record>(Math.min(limit, 256));
+
+        for (var segment : snapshot) {
+            var count = segment.getEntryCount();
+
+            if (count == 0 || segment.getTimestamp(count - 1) < since) {
+                continue;
+            }
+
+            for (var entry = segment.findEntryByTime(since, count); entry < count; entry++) {
+                if (records.size() >= limit || segment.getTimestamp(entry) >= until) {
+                    return records;
+                }
+
+                records.add(new Record(segment.getSequence(entry), segment.getTimestamp(entry), segment.readMessage(entry)));
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Reads the newest records of all types before a time.
+     */
+    private static List<Record> queryNewest(List<Segment> snapshot, long until, int limit) {
+        var records = new ArrayList<Record>(Math.min(limit, 256));
+
+        for (var s = snapshot.size() - 1; s >= 0 && records.size() < limit; s--) {
+            var segment = snapshot.get(s);
+
+            // Collected backwards, reversed at the end
+            for (var entry = segment.findEntryByTime(until, segment.getEntryCount()) - 1; entry >= 0 && records.size() < limit; entry--) {
+                records.add(new Record(segment.getSequence(entry), segment.getTimestamp(entry), segment.readMessage(entry)));
+            }
+        }
+
+        Collections.reverse(records);
+
+        return records;
+    }
+
+    /**
+     * @return sequence of the oldest record, -1 if the journal is empty
+     */
+    public long getFirstSequence() {
+        for (var segment : List.copyOf(segments)) {
+            if (segment.getEntryCount() > 0) {
+                return segment.getSequence(0);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return sequence of the newest record, -1 if the journal is empty
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Marks the sequences before the hub's first one as handed over. The
+     * hub doesn't have anything earlier, replays don't have to wait for them.
+     *
+     * @param sequence the last sequence of the previous hub
+     */
+    public void markProcessed(long sequence) {
+        processedSequence = Math.max(processedSequence, sequence);
+    }
+
+    /**
+     * @return the last sequence handed over by the hub, journaled or not.
+     * Every earlier notification is readable once this reaches its sequence.
+     */
+    public long getProcessedSequence() {
+        return processedSequence;
+    }
+
+    /**
+     * @return number of records written since start
+     */
+    public long getAppendedCount() {
+        return appendedCount;
+    }
+
+    /**
+     * @return number of flushes since start
+     */
+    public long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * @return duration of the last flush in nanoseconds
+     */
+    public long getLastCommitNanos() {
+        return lastCommitNanos;
+    }
+
+    private static String getSubscriptionType(String message) {
+        try {
+            return EventSubEnvelope.parse(message).getSubscriptionType();
+        }
+        catch (JSONException ex) {
+            return null;
+        }
+    }
+
+    private static int typeHash(String subscriptionType) {
+        return subscriptionType != null ? subscriptionType.hashCode() : 0;
+    }
+
+    /**
+     * A journal file with its index, both mapped into memory. Written by the
+     * sink's thread only, the entry count publishes the records to readers.
+     */
+    private static final class Segment {
+
+        private final long firstSequence;
+
+        private final File journalFile;
+
+        private final File indexFile;
+
+        private final MappedByteBuffer journal;
+
+        private final MappedByteBuffer index;
+
+        private final int indexCapacity;
+
+        private volatile int entryCount = 0;
+
+        private int writePosition = 0;
+
+        // Written but not flushed yet
+        private int committedPosition = 0;
+        private int committedEntries = 0;
+
+        private Segment(long firstSequence, File journalFile, File indexFile, int journalSize, int indexSize) throws IOException {
+            this.firstSequence = firstSequence;
+            this.journalFile = journalFile;
+            this.indexFile = indexFile;
+
+            // Mapping extends the files to their full size, the mappings stay
+            // valid after the files are closed
+            try (var journalRaf = new RandomAccessFile(journalFile, "rw");
+                    var indexRaf = new RandomAccessFile(indexFile, "rw")) {
+                journal = journalRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, journalSize);
+                index = indexRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexSize);
+            }
+
+            indexCapacity = indexSize / INDEX_ENTRY_SIZE;
+        }
+
+        private static File getFile(File directory, long firstSequence, String extension) {
+            return new File(directory, String.format("%020d", firstSequence) + extension);
+        }
+
+        /**
+         * Creates an empty segment.
+         */
+        private static Segment create(File directory, long firstSequence, int size) throws IOException {
+            var indexEntries = Math.max(16, size / MIN_AVERAGE_RECORD_SIZE);
+
+            return new Segment(
+                    firstSequence,
+                    getFile(directory, firstSequence, JOURNAL_EXTENSION),
+                    getFile(directory, firstSequence, INDEX_EXTENSION),
+                    size,
+                    indexEntries * INDEX_ENTRY_SIZE
+            );
+        }
+
+        /**
+         * Opens an existing segment.
+         *
+         * @param recover validate the records and rebuild the index, for the
+         * last segment which may have been written during a crash
+         */
+        private static Segment open(File directory, long firstSequence, boolean recover) throws IOException {
+            var journalFile = getFile(directory, firstSequence, JOURNAL_EXTENSION);
+            var indexFile = getFile(directory, firstSequence, INDEX_EXTENSION);
+            var journalSize = (int) journalFile.length();
+            var indexSize = indexFile.exists()
+                    ? (int) indexFile.length()
+                    : Math.max(16, journalSize / MIN_AVERAGE_RECORD_SIZE) * INDEX_ENTRY_SIZE;
+
+            var segment = new Segment(firstSequence, journalFile, indexFile, journalSize, indexSize);
+
+            if (recover) {
+                segment.recover();
+            }
+            else {
+                segment.countEntries();
+            }
+
+            return segment;
+        }
+
+        /**
+         * Counts the index entries of a complete segment, an entry with zero
+         * timestamp is the end.
+         */
+        private void countEntries() {
+            var count = 0;
+
+            while (count < indexCapacity && index.getLong(count * INDEX_ENTRY_SIZE + 8) != 0) {
+                count++;
+            }
+
+            entryCount = count;
+            committedEntries = count;
+
+            if (count > 0) {
+                var position = index.getInt((count - 1) * INDEX_ENTRY_SIZE + 16);
+                writePosition = position + RECORD_HEADER_SIZE + journal.getInt(position);
+                committedPosition = writePosition;
+            }
+        }
+
+        /**
+         * Walks the records until the first invalid one and rebuilds the
+         * index from them.
+         */
+        private void recover() {
+            var crc = new CRC32();
+            var position = 0;
+            var count = 0;
+
+            while (position + RECORD_HEADER_SIZE <= journal.capacity() && count < indexCapacity) {
+                var length = journal.getInt(position);
+
+                if (length <= 0 || position + RECORD_HEADER_SIZE + length > journal.capacity()) {
+                    break;
+                }
+
+                // Check the payload
+                crc.reset();
+                crc.update(journal.slice(position + RECORD_HEADER_SIZE, length));
+
+                if ((int) crc.getValue() != journal.getInt(position + 4)) {
+                    break;
+                }
+
+                var payload = new byte[length];
+                journal.get(position + RECORD_HEADER_SIZE, payload);
+
+                writeIndexEntry(count, journal.getLong(position + 8), journal.getLong(position + 16), position,
+                        typeHash(getSubscriptionType(new String(payload, StandardCharsets.UTF_8))));
+
+                position += RECORD_HEADER_SIZE + length;
+                count++;
+            }
+
+            // A torn record was left at the end, it must not look valid later
+            if (position + 4 <= journal.capacity() && journal.getInt(position) != 0) {
+                logger.log(Level.WARNING, "Journal segment {0} has a torn record at {1}, discarded", new Object[] { Long.toString(firstSequence), Integer.toString(position) });
+
+                for (var i = position; i < journal.capacity(); i++) {
+                    journal.put(i, (byte) 0);
+                }
+            }
+
+            // Entries after the valid ones
+            if (count < indexCapacity) {
+                index.putLong(count * INDEX_ENTRY_SIZE + 8, 0);
+            }
+
+            writePosition = position;
+            committedPosition = 0;
+            committedEntries = 0;
+            entryCount = count;
+
+            commit();
+        }
+
+        private boolean hasRoomFor(int recordSize) {
+            return writePosition + recordSize <= journal.capacity() && entryCount < indexCapacity;
+        }
+
+        private void append(long sequence, long timestamp, byte[] payload, int checksum, int typeHash) {
+            var position = writePosition;
+
+            // The length is written last, it marks the record complete
+            journal.putInt(position + 4, checksum);
+            journal.putLong(position + 8, sequence);
+            journal.putLong(position + 16, timestamp);
+            journal.put(position + RECORD_HEADER_SIZE, payload);
+            journal.putInt(position, payload.length);
+
+            writeIndexEntry(entryCount, sequence, timestamp, position, typeHash);
+
+            writePosition = position + RECORD_HEADER_SIZE + payload.length;
+
+            // Visible for readers from now on
+            entryCount++;
+        }
+
+        private void writeIndexEntry(int entry, long sequence, long timestamp, int position, int typeHash) {
+            var offset = entry * INDEX_ENTRY_SIZE;
+
+            index.putLong(offset, sequence);
+            index.putLong(offset + 8, timestamp);
+            index.putInt(offset + 16, position);
+            index.putInt(offset + 20, typeHash);
+        }
+
+        /**
+         * Flushes the records written since the last commit.
+         */
+        private void commit() {
+            if (writePosition > committedPosition) {
+                journal.force(committedPosition, writePosition - committedPosition);
+                committedPosition = writePosition;
+            }
+
+            var count = entryCount;
+
+            if (count > committedEntries) {
+                index.force(committedEntries * INDEX_ENTRY_SIZE, (count - committedEntries) * INDEX_ENTRY_SIZE);
+                committedEntries = count;
+            }
+        }
+
+        /**
+         * Binary searches the index.
+         *
+         * @return the first entry with a sequence not less than the given one
+         */
+        private int findEntry(long sequence, int count) {
+            var low = 0;
+            var high = count;
+
+            while (low < high) {
+                var middle = (low + high) >>> 1;
+
+                if (getSequence(middle) < sequence) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        /**
+         * Binary searches the index by time.
+         *
+         * @return the first entry with a timestamp not less than the given
+         * one
+         */
+        private int findEntryByTime(long timestamp, int count) {
+            var low = 0;
+            var high = count;
+
+            while (low < high) {
+                var middle = (low + high) >>> 1;
+
+                if (getTimestamp(middle) < timestamp) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        private int getEntryCount() {
+            return entryCount;
+        }
+
+        private long getSequence(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_SIZE);
+        }
+
+        private long getTimestamp(int entry) {
+            return index.getLong(entry * INDEX_ENTRY_SIZE + 8);
+        }
+
+        private int getTypeHash(int entry) {
+            return index.getInt(entry * INDEX_ENTRY_SIZE + 20);
+        }
+
+        private long getLastSequence() {
+            var count = entryCount;
+
+            return count > 0 ? getSequence(count - 1) : -1;
+        }
+
+        /**
+         * @return time of the newest record, the file's time if it is empty
+         */
+        private long getLastTimestamp() {
+            var count = entryCount;
+
+            return count > 0 ? getTimestamp(count - 1) : journalFile.lastModified();
+        }
+
+        /**
+         * @return read-only view of a record's message in the mapping
+         */
+        private ByteBuffer getPayload(int entry) {
+            var position = index.getInt(entry * INDEX_ENTRY_SIZE + 16);
+
+            return journal.slice(position + RECORD_HEADER_SIZE, journal.getInt(position)).asReadOnlyBuffer();
+        }
+
+        private String readMessage(int entry) {
+            var position = index.getInt(entry * INDEX_ENTRY_SIZE + 16);
+            var payload = new byte[journal.getInt(position)];
+
+            journal.get(position + RECORD_HEADER_SIZE, payload);
+
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Flushes the segment, the mappings are released by the garbage
+         * collector.
+         */
+        private void close() {
+            commit();
+        }
+
+        private void delete() {
+            journalFile.delete();
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Sequences and timestamps of the records of one subscription type, in
+     * primitive arrays. Entries removed by retention are dropped from the
+     * front, their room is reused when the arrays are full.
+     */
+    private static final class TypeIndex {
+
+        private long[] sequences = new long[16];
+
+        private long[] timestamps = new long[16];
+
+        // Range of the valid entries
+        private int start = 0;
+        private int end = 0;
+
+        private synchronized void add(long sequence, long timestamp) {
+            if (end == sequences.length) {
+                // Compact if at least the half is free, grow otherwise
+                var size = end - start;
+                var capacity = size <= sequences.length / 2 ? sequences.length : sequences.length * 2;
+
+                sequences = copy(sequences, capacity);
+                timestamps = copy(timestamps, capacity);
+                start = 0;
+                end = size;
+            }
+
+            sequences[end] = sequence;
+            timestamps[end] = timestamp;
+            end++;
+        }
+
+        private long[] copy(long[] array, int capacity) {
+            var newArray = new long[capacity];
+            System.arraycopy(array, start, newArray, 0, end - start);
+            return newArray;
+        }
+
+        /**
+         * Drops the entries before a sequence.
+         *
+         * @return true if the index became empty
+         */
+        private synchronized boolean removeBefore(long sequence) {
+            start = lowerBound(sequences, sequence);
+
+            return start == end;
+        }
+
+        /**
+         * @return the first sequences journaled in a time range, starting
+         * from a sequence
+         */
+        private synchronized long[] findOldest(long since, long until, long fromSequence, int limit) {
+            var first = Math.max(lowerBound(timestamps, since), lowerBound(sequences, fromSequence));
+            var last = first;
+
+            while (last < end && last - first < limit && timestamps[last] < until) {
+                last++;
+            }
+
+            return Arrays.copyOfRange(sequences, first, last);
+        }
+
+        /**
+         * @return the last sequences journaled before a time and a sequence,
+         * in sequence order
+         */
+        private synchronized long[] findNewest(long until, long beforeSequence, int limit) {
+            var last = Math.min(lowerBound(timestamps, until), lowerBound(sequences, beforeSequence));
+            var first = Math.max(start, last - limit);
+
+            return Arrays.copyOfRange(sequences, first, last);
+        }
+
+        /**
+         * @return the first valid entry with a value not less than the key
+         */
+        private int lowerBound(long[] array, long key) {
+            var low = start;
+            var high = end;
+
+            while (low < high) {
+                var middle = (low + high) >>> 1;
+
+                if (array[middle] < key) {
+                    low = middle + 1;
+                }
+                else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+    }
+}
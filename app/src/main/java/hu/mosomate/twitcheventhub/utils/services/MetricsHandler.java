@@ -0,0 +1,149 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import java.io.IOException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Serves the counters of the dispatching on {@code GET /metrics} as a JSON
+ * object, for monitoring tools and for finding the slow parts:
+ * <ul>
+ * <li>{@code sinks}: lag and drops of every sink of the hub</li>
+ * <li>{@code websocket_clients}: queue depth and drops of every client</li>
+ * <li>{@code journal}, {@code dispatch}, {@code static_assets}: counters of
+ * the event journal, the dispatch endpoint and the page cache</li>
+ * <li>{@code contexts}: request latency of every web server context in
+ * nanoseconds</li>
+ * </ul>
+ *
+ * @author mosomate
+ */
+public class MetricsHandler {
+
+    private final WebServerManager webServerManager;
+
+    private final WebSocketDispatchManager wsDispatchManager;
+
+    private final DispatchHub dispatchHub;
+
+    private final EventJournal eventJournal;
+
+    private final SseStreamManager sseStreamManager;
+
+    private final DispatchIngestHandler dispatchIngestHandler;
+
+    public MetricsHandler(WebServerManager webServerManager, WebSocketDispatchManager wsDispatchManager,
+            DispatchHub dispatchHub, EventJournal eventJournal, SseStreamManager sseStreamManager,
+            DispatchIngestHandler dispatchIngestHandler) {
+        this.webServerManager = webServerManager;
+        this.wsDispatchManager = wsDispatchManager;
+        this.dispatchHub = dispatchHub;
+        this.eventJournal = eventJournal;
+        this.sseStreamManager = sseStreamManager;
+        this.dispatchIngestHandler = dispatchIngestHandler;
+    }
+
+    /**
+     * Serves a metrics request.
+     *
+     * @param he HTTP request from the server
+     * @throws IOException
+     */
+    public void handleMetricsRequest(HttpExchange he) throws IOException {
+        if (!"GET".equalsIgnoreCase(he.getRequestMethod())) {
+            he.getResponseHeaders().set("Allow", "GET");
+            HttpHelper.respondSimpleMessage(he, 405, "Method not allowed!");
+            return;
+        }
+
+        HttpHelper.respondJson(he, 200, collect().toString());
+    }
+
+    /**
+     * Collects the current values of the counters.
+     *
+     * @return the response object
+     */
+    public JSONObject collect() {
+        var response = new JSONObject();
+
+        // Dispatch hub
+        var sinks = new JSONArray();
+
+        for (var sink : dispatchHub.getSinks()) {
+            var sinkJson = new JSONObject();
+            sinkJson.put("name", sink.getName());
+            sinkJson.put("running", sink.isRunning());
+            sinkJson.put("lag", dispatchHub.getLag(sink));
+            sinkJson.put("max_lag", dispatchHub.getMaxLag(sink));
+            sinkJson.put("dropped", dispatchHub.getDroppedCount(sink));
+            sinks.put(sinkJson);
+        }
+
+        response.put("last_sequence", dispatchHub.getLastSequence());
+        response.put("sinks", sinks);
+
+        // WebSocket clients
+        var clients = new JSONArray();
+
+        for (var clientQueue : wsDispatchManager.getClientQueues()) {
+            var clientJson = new JSONObject();
+            clientJson.put("depth", clientQueue.getDepth());
+            clientJson.put("max_depth", clientQueue.getMaxDepth());
+            clientJson.put("dropped", clientQueue.getDroppedCount());
+            clientJson.put("buffered_bytes", clientQueue.getBufferedBytes());
+            clients.put(clientJson);
+        }
+
+        response.put("websocket_clients", clients);
+        response.put("sse_streams", sseStreamManager.getStreamCount());
+
+        // Event journal
+        var journalJson = new JSONObject();
+        journalJson.put("first_sequence", eventJournal.getFirstSequence());
+        journalJson.put("last_sequence", eventJournal.getLastSequence());
+        journalJson.put("appended", eventJournal.getAppendedCount());
+        journalJson.put("commits", eventJournal.getCommitCount());
+        journalJson.put("last_commit_nanos", eventJournal.getLastCommitNanos());
+        response.put("journal", journalJson);
+
+        // Dispatch endpoint
+        var dispatchJson = new JSONObject();
+        dispatchJson.put("accepted", dispatchIngestHandler.getAcceptedCount());
+        dispatchJson.put("rejected", dispatchIngestHandler.getRejectedCount());
+        response.put("dispatch", dispatchJson);
+
+        // Page cache
+        var assetCache = webServerManager.getAssetCache();
+        var assetsJson = new JSONObject();
+        assetsJson.put("hits", assetCache.getHitCount());
+        assetsJson.put("misses", assetCache.getMissCount());
+        assetsJson.put("not_modified", assetCache.getNotModifiedCount());
+        assetsJson.put("cache_size", assetCache.getCacheSize());
+        response.put("static_assets", assetsJson);
+
+        // Web server contexts
+        var contexts = new JSONArray();
+
+        for (var filter : webServerManager.getLatencyFilters()) {
+            var contextJson = new JSONObject();
+            contextJson.put("path", filter.getPath());
+            contextJson.put("requests", filter.getRequestCount());
+            contextJson.put("errors", filter.getErrorCount());
+            contextJson.put("average_nanos", filter.getAverageNanos());
+            contextJson.put("p99_nanos", filter.getPercentileNanos(99));
+            contextJson.put("max_nanos", filter.getMaxNanos());
+            contexts.put(contextJson);
+        }
+
+        response.put("contexts", contexts);
+
+        return response;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+/**
+ * The regular RFC 6455 draft, except that {@link PreEncodedTextFrame}s are not
+ * encoded again for every connection, their cached bytes are written instead.
+ *
+ * @author mosomate
+ */
+public class PreEncodedFrameDraft extends Draft_6455 {
+
+    public PreEncodedFrameDraft() {
+        super();
+    }
+
+    private PreEncodedFrameDraft(List<IExtension> extensions, List<IProtocol> protocols, int maxFrameSize) {
+        super(extensions, protocols, maxFrameSize);
+    }
+
+    @Override
+    public ByteBuffer createBinaryFrame(Framedata framedata) {
+        if (framedata instanceof PreEncodedTextFrame preEncodedFrame) {
+            return preEncodedFrame.getEncodedFrame();
+        }
+
+        return super.createBinaryFrame(framedata);
+    }
+
+    @Override
+    public Draft copyInstance() {
+        // Same as the parent's, but keeps this class for every connection
+        var extensions = new ArrayList<IExtension>();
+
+        for (var extension : getKnownExtensions()) {
+            extensions.add(extension.copyInstance());
+        }
+
+        var protocols = new ArrayList<IProtocol>();
+
+        for (var protocol : getKnownProtocols()) {
+            protocols.add(protocol.copyInstance());
+        }
+
+        return new PreEncodedFrameDraft(extensions, protocols, getMaxFrameSize());
+    }
+}
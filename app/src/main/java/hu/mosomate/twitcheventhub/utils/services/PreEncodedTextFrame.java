@@ -0,0 +1,72 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.framing.TextFrame;
+
+/**
+ * A text frame that is encoded only once, no matter how many clients it is
+ * sent to. The complete server frame (header and UTF-8 payload) is kept in one
+ * buffer and every connection gets a view of it. Works together with
+ * {@link PreEncodedFrameDraft}.
+ * <p>
+ * The buffer is on the heap on purpose: Java-WebSocket calls
+ * {@link ByteBuffer#array()} on the buffers it writes, so direct or read-only
+ * buffers can't be used.
+ *
+ * @author mosomate
+ */
+public final class PreEncodedTextFrame extends TextFrame {
+
+    /**
+     * Used only for encoding. Server frames are never masked, so the same
+     * bytes are valid for every connection.
+     */
+    private static final Draft_6455 ENCODER_DRAFT = new Draft_6455();
+
+    /**
+     * The encoded frame, never modified after construction.
+     */
+    private final ByteBuffer encodedFrame;
+
+    public PreEncodedTextFrame(String message) {
+        this(ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates a frame from an already encoded UTF-8 message, e.g. a view of
+     * the {@link EventJournal}. The bytes are copied only once, into the
+     * encoded frame.
+     *
+     * @param utf8Message the message, may be a direct or read-only buffer
+     */
+    public PreEncodedTextFrame(ByteBuffer utf8Message) {
+        setPayload(utf8Message);
+        setFin(true);
+
+        // Encode the whole frame once
+        encodedFrame = ENCODER_DRAFT.createBinaryFrame(this);
+    }
+
+    /**
+     * Gives back the encoded frame. Every caller gets its own position and
+     * limit, the content is shared.
+     *
+     * @return view of the encoded frame
+     */
+    public ByteBuffer getEncodedFrame() {
+        return encodedFrame.duplicate();
+    }
+
+    /**
+     * @return size of the encoded frame in bytes
+     */
+    public int getEncodedSize() {
+        return encodedFrame.remaining();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import java.io.IOException;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Keeps the most recent messages with their sequence numbers, so consumers of
+ * fire-and-forget transports (UDP) can fetch the ones they missed. Registered
+ * as a sink of the {@link DispatchHub}, served by the web server on
+ * {@code /replay}.
+ * <p>
+ * Request: {@code /replay?from=<sequence>[&limit=<count>]}. The response is a
+ * JSON object:
+ * <pre>
+ * {
+ *   "oldest": first sequence still available, -1 if empty,
+ *   "latest": last sequence received, -1 if empty,
+ *   "truncated": true if messages before "oldest" were asked but are gone,
+ *   "messages": [{"sequence": 42, "message": "..."}, ...]
+ * }
+ * </pre>
+ *
+ * @author mosomate
+ */
+public class ReplayWindow implements DispatchSink {
+
+    /**
+     * Default number of kept messages.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Maximum number of messages returned by one request.
+     */
+    private static final int MAX_LIMIT = 1000;
+
+    // Ring of the kept messages, guarded by this
+    private final long[] sequences;
+    private final String[] messages;
+    private int head = 0;
+    private int size = 0;
+
+    private volatile boolean running = false;
+
+    /**
+     * @param capacity number of kept messages, at least 1
+     */
+    public ReplayWindow(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Replay window capacity must be at least 1: " + capacity);
+        }
+
+        sequences = new long[capacity];
+        messages = new String[capacity];
+    }
+
+    @Override
+    public String getName() {
+        return "replay";
+    }
+
+    @Override
+    public void start() {
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized boolean offer(long sequence, String message) {
+        var index = (head + size) % messages.length;
+
+        sequences[index] = sequence;
+        messages[index] = message;
+
+        // Overwrite the oldest when full
+        if (size < messages.length) {
+            size++;
+        }
+        else {
+            head = (head + 1) % messages.length;
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized int offerBatch(long firstSequence, List<String> messages) {
+        // Take the lock only once
+        return DispatchSink.super.offerBatch(firstSequence, messages);
+    }
+
+    /**
+     * Serves a replay request.
+     *
+     * @param he HTTP request from the server
+     * @throws IOException
+     */
+    public void handleReplayRequest(HttpExchange he) throws IOException {
+        var params = HttpHelper.parseQueryParams(he);
+
+        // Parse parameters
+        long from;
+        int limit;
+
+        try {
+            from = Long.parseLong(params.get("from"));
+            limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : MAX_LIMIT;
+        }
+        catch (NumberFormatException ex) {
+            HttpHelper.respondSimpleMessage(he, 400, "Invalid or missing from/limit parameter!");
+            return;
+        }
+
+        limit = Math.max(0, Math.min(limit, MAX_LIMIT));
+
+        HttpHelper.respondJson(he, 200, collect(from, limit).toString());
+    }
+
+    /**
+     * Collects the kept messages starting from a sequence number.
+     *
+     * @param from the first requested sequence number
+     * @param limit maximum number of messages
+     * @return the response object
+     */
+    public synchronized JSONObject collect(long from, int limit) {
+        var response = new JSONObject();
+        var oldest = size > 0 ? sequences[head] : -1L;
+        var latest = size > 0 ? sequences[(head + size - 1) % messages.length] : -1L;
+
+        response.put("oldest", oldest);
+        response.put("latest", latest);
+        response.put("truncated", size > 0 && from < oldest);
+
+        var items = new JSONArray();
+
+        // Sequences are increasing, skip the ones before from
+        for (var i = 0; i < size && items.length() < limit; i++) {
+            var index = (head + i) % messages.length;
+
+            if (sequences[index] < from) {
+                continue;
+            }
+
+            var item = new JSONObject();
+            item.put("sequence", sequences[index]);
+            item.put("message", messages[index]);
+            items.put(item);
+        }
+
+        response.put("messages", items);
+
+        return response;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long the handler of a web server context runs. Requests are
+ * counted in power of two buckets, so percentiles can be estimated without
+ * keeping the samples.
+ * <p>
+ * The time is measured until the handler returns, for a streaming handler
+ * that is the time until the response headers are sent.
+ *
+ * @author mosomate
+ */
+public class RequestLatencyFilter extends Filter {
+
+    /**
+     * Bucket i counts the requests of at most 2^i nanoseconds.
+     */
+    private static final int BUCKET_COUNT = 48;
+
+    private final String path;
+
+    private final LongAdder requestCount = new LongAdder();
+
+    private final LongAdder errorCount = new LongAdder();
+
+    private final LongAdder totalNanos = new LongAdder();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    public RequestLatencyFilter(String path) {
+        this.path = path;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        var started = System.nanoTime();
+
+        try {
+            chain.doFilter(exchange);
+        }
+        catch (IOException | RuntimeException ex) {
+            errorCount.increment();
+            throw ex;
+        }
+        finally {
+            record(System.nanoTime() - started);
+        }
+    }
+
+    private void record(long nanos) {
+        requestCount.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+
+        var bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos - 1)));
+        buckets.incrementAndGet(bucket);
+    }
+
+    @Override
+    public String description() {
+        return "Request latency of " + path;
+    }
+
+    /**
+     * @return path of the measured context
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of handled requests
+     */
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * @return number of requests whose handler threw an exception
+     */
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    /**
+     * @return average handling time in nanoseconds, 0 without requests
+     */
+    public long getAverageNanos() {
+        var count = requestCount.sum();
+
+        return count > 0 ? totalNanos.sum() / count : 0;
+    }
+
+    /**
+     * @return the longest handling time in nanoseconds
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Estimates a percentile of the handling times.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return upper bound of the bucket containing the percentile in
+     * nanoseconds, 0 without requests
+     */
+    public long getPercentileNanos(double percentile) {
+        var counts = new long[BUCKET_COUNT];
+        var total = 0L;
+
+        for (var i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        var rank = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+        var seen = 0L;
+
+        for (var i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(1L << i, getMaxNanos());
+            }
+        }
+
+        return getMaxNanos();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the sequences of the {@link DispatchHub} unique across restarts and
+ * crashes. Sequences are reserved in blocks: before the first sequence of a
+ * new block is handed out, the end of the block is written into a small file
+ * and flushed to disk. A new hub continues after the last reserved block, so
+ * at most a block is skipped, but no sequence is reused.
+ *
+ * @author mosomate
+ */
+public class SequenceCheckpoint {
+
+    private static final Logger logger = Logger.getLogger(SequenceCheckpoint.class.getName());
+
+    /**
+     * Number of sequences reserved at once.
+     */
+    public static final long BLOCK_SIZE = 1 << 16;
+
+    /**
+     * The first sequence of the new hub.
+     */
+    private final long startSequence;
+
+    /**
+     * The first sequence not reserved yet.
+     */
+    private long reservedSequence;
+
+    /**
+     * Mapped checkpoint file, null if it couldn't be opened.
+     */
+    private MappedByteBuffer checkpoint;
+
+    /**
+     * Opens the checkpoint file, creates it if missing.
+     *
+     * @param file the checkpoint file
+     * @param minimumSequence the new hub starts at least here, e.g. after the
+     * last sequence of the {@link EventJournal}
+     */
+    public SequenceCheckpoint(File file, long minimumSequence) {
+        var sequence = minimumSequence;
+
+        try (var checkpointRaf = new RandomAccessFile(file, "rw")) {
+            var isNew = checkpointRaf.length() < Long.BYTES;
+
+            checkpoint = checkpointRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+
+            if (!isNew) {
+                sequence = Math.max(sequence, checkpoint.getLong(0));
+            }
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, "Sequence checkpoint could not be opened, sequences may be reused after a restart", ex);
+        }
+
+        startSequence = sequence;
+        reservedSequence = sequence;
+    }
+
+    /**
+     * Makes sure a sequence is reserved before it is handed out. Called by
+     * the hub for every published message, in order.
+     *
+     * @param sequence the sequence about to be handed out
+     */
+    public synchronized void reserve(long sequence) {
+        if (sequence < reservedSequence) {
+            return;
+        }
+
+        reservedSequence = sequence + BLOCK_SIZE;
+
+        if (checkpoint != null) {
+            checkpoint.putLong(0, reservedSequence);
+            checkpoint.force();
+        }
+    }
+
+    /**
+     * @return the first sequence of the new hub
+     */
+    public long getStartSequence() {
+        return startSequence;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
+import hu.mosomate.twitcheventhub.utils.eventsub.EventSubEnvelope;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.json.JSONException;
+
+/**
+ * Streams the dispatched messages as Server-Sent Events on the web server
+ * ({@code /events/stream}), for clients that can't use the WebSocket port.
+ * <p>
+ * Every message is an event with the hub sequence as its {@code id} and the
+ * message as its {@code data}. A reconnecting client sends the last ID in the
+ * {@code Last-Event-ID} header (browsers do it by themselves) or in the
+ * {@code last_event_id} query parameter, and gets the notifications it
+ * missed from the {@link EventJournal} before the live ones. The
+ * {@code topics} query parameter limits the stream to some subscription or
+ * message types, e.g. {@code ?topics=channel.follow,channel.raid}.
+ * <p>
+ * Connections don't have threads of their own. Every stream has a bounded
+ * queue of encoded events and a writer task is started on a virtual thread
+ * only while there is something to write. A stream whose queue overflows is
+ * closed, the client can resume from its last event ID. Comment lines are
+ * sent as heartbeats, so proxies keep the idle streams open and broken
+ * connections are noticed.
+ *
+ * @author mosomate
+ */
+public class SseStreamManager implements DispatchSink {
+
+    private static final Logger logger = Logger.getLogger(SseStreamManager.class.getName());
+
+    /**
+     * Maximum number of queued events of a stream.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final long HEARTBEAT_INTERVAL_MILLIS = 15_000;
+
+    /**
+     * How long a replay waits for the journal to catch up with the hub.
+     */
+    private static final long JOURNAL_WAIT_MILLIS = 2_000;
+
+    /**
+     * Maximum number of journal records read at once during a replay.
+     */
+    private static final int REPLAY_SCAN_LIMIT = 256;
+
+    /**
+     * Reconnect delay suggested to the clients.
+     */
+    private static final byte[] STREAM_START = "retry: 3000\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private volatile boolean running = false;
+
+    /**
+     * Topics of the connected streams.
+     */
+    private final TopicSubscriptionIndex<Stream> subscriptions = new TopicSubscriptionIndex<>();
+
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Source of the resumes, null if resuming is not available.
+     */
+    private volatile EventJournal journal;
+
+    /**
+     * Runs the writer tasks.
+     */
+    private volatile ExecutorService writerExecutor;
+
+    /**
+     * Sends the heartbeats.
+     */
+    private volatile ScheduledExecutorService heartbeatExecutor;
+
+    /**
+     * Sequence of the last message handed over by the hub, guarded by this.
+     */
+    private long lastOfferedSequence = -1;
+
+    @Override
+    public String getName() {
+        return "sse";
+    }
+
+    /**
+     * Sets the journal the missed notifications are read from.
+     *
+     * @param journal the journal, null to disable resuming
+     */
+    public synchronized void setJournal(EventJournal journal) {
+        this.journal = journal;
+
+        // After a restart the hub continues after the journal, streams
+        // resumed before its first message are served from the journal
+        if (journal != null) {
+            lastOfferedSequence = Math.max(lastOfferedSequence, journal.getProcessedSequence());
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        writerExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadHelper.newDaemonThreadFactory("sse-heartbeat")
+        );
+        heartbeatExecutor.scheduleWithFixedDelay(this::sendHeartbeats,
+                HEARTBEAT_INTERVAL_MILLIS, HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        running = true;
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+
+        heartbeatExecutor.shutdownNow();
+        heartbeatExecutor = null;
+
+        for (var stream : List.copyOf(streams)) {
+            stream.close();
+        }
+
+        writerExecutor.shutdown();
+        writerExecutor = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Opens a stream. The response is left open after the handler returns,
+     * it is written by the writer tasks.
+     *
+     * @param he HTTP request from the server
+     * @throws IOException
+     */
+    public void handleStreamRequest(HttpExchange he) throws IOException {
+        if (!running) {
+            HttpHelper.respondSimpleMessage(he, 503, "Event stream is not available!");
+            return;
+        }
+
+        var params = HttpHelper.parseQueryParams(he);
+
+        // Resume point, the header is sent by browsers on reconnect
+        var lastEventId = he.getRequestHeaders().getFirst("Last-Event-ID");
+
+        if (lastEventId == null) {
+            lastEventId = params.get("last_event_id");
+        }
+
+        long resumeFrom = -1;
+
+        if (lastEventId != null && !lastEventId.isEmpty()) {
+            try {
+                resumeFrom = Long.parseLong(lastEventId.trim()) + 1;
+            }
+            catch (NumberFormatException ex) {
+                HttpHelper.respondSimpleMessage(he, 400, "Invalid Last-Event-ID!");
+                return;
+            }
+        }
+
+        // Headers, the body is chunked
+        var headers = he.getResponseHeaders();
+        headers.set("Content-Type", "text/event-stream; charset=utf-8");
+        headers.set("Cache-Control", "no-cache");
+        headers.set("X-Accel-Buffering", "no");
+        he.sendResponseHeaders(200, 0);
+
+        // Topic filter
+        var topics = params.get("topics");
+
+        register(new Stream(he, DEFAULT_QUEUE_CAPACITY),
+                topics != null && !topics.isEmpty() ? Arrays.asList(topics.split(",")) : null,
+                resumeFrom);
+    }
+
+    /**
+     * Adds a stream to the fan-out. Registering and offering are serialized,
+     * so the messages after the captured sequence reach the stream live and
+     * the ones before it come from the journal.
+     */
+    private synchronized void register(Stream stream, List<String> topics, long resumeFrom) {
+        if (resumeFrom >= 0 && resumeFrom <= lastOfferedSequence) {
+            stream.resumeFrom = resumeFrom;
+            stream.resumeTo = lastOfferedSequence;
+        }
+        // This sink is behind the client, skip what it already has
+        else if (resumeFrom > lastOfferedSequence) {
+            stream.liveFrom = resumeFrom;
+        }
+
+        subscriptions.addClient(stream);
+
+        if (topics != null) {
+            subscriptions.subscribe(stream, topics);
+        }
+
+        streams.add(stream);
+        stream.enqueue(STREAM_START);
+    }
+
+    @Override
+    public synchronized boolean offer(long sequence, String message) {
+        if (!running) {
+            return false;
+        }
+
+        lastOfferedSequence = sequence;
+
+        // Nobody to send to
+        if (streams.isEmpty()) {
+            return true;
+        }
+
+        List<Stream> recipients = subscriptions.isUnfiltered() ?
+                List.copyOf(streams) :
+                subscriptions.getRecipients(getMessageTopic(message));
+
+        if (recipients.isEmpty()) {
+            return true;
+        }
+
+        // Encode once, queue the same bytes for everyone
+        var event = encodeEvent(sequence, message);
+
+        for (var stream : recipients) {
+            if (sequence >= stream.liveFrom) {
+                stream.enqueue(event);
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized int offerBatch(long firstSequence, List<String> messages) {
+        // Take the lock only once
+        return DispatchSink.super.offerBatch(firstSequence, messages);
+    }
+
+    /**
+     * @return number of open streams
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    private void sendHeartbeats() {
+        for (var stream : streams) {
+            stream.enqueue(HEARTBEAT);
+        }
+    }
+
+    /**
+     * Writes the missed notifications from the journal, on the writer task
+     * of the stream before its queued live events.
+     */
+    private void resume(Stream stream, OutputStream out) throws IOException {
+        var currentJournal = journal;
+
+        if (currentJournal == null || !currentJournal.isRunning()) {
+            return;
+        }
+
+        // The journal is another sink, it may be behind the live events
+        var deadline = System.currentTimeMillis() + JOURNAL_WAIT_MILLIS;
+
+        while (currentJournal.getProcessedSequence() < stream.resumeTo && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        var filtered = !subscriptions.isSubscribed(stream, null);
+        var nextSequence = stream.resumeFrom;
+        var chunk = new ArrayList<byte[]>(REPLAY_SCAN_LIMIT);
+
+        while (nextSequence <= stream.resumeTo && !stream.closed) {
+            chunk.clear();
+
+            var visited = currentJournal.scan(nextSequence, stream.resumeTo, REPLAY_SCAN_LIMIT,
+                    (long sequence, long timestamp, ByteBuffer payload) -> {
+                        var message = StandardCharsets.UTF_8.decode(payload).toString();
+
+                        if (!filtered || subscriptions.isSubscribed(stream, getMessageTopic(message))) {
+                            chunk.add(encodeEvent(sequence, message));
+                        }
+                    });
+
+            // Nothing more in the journal
+            if (visited < 0) {
+                break;
+            }
+
+            for (var event : chunk) {
+                out.write(event);
+            }
+
+            out.flush();
+            nextSequence = visited + 1;
+        }
+    }
+
+    /**
+     * Encodes a message as an event. Line breaks can only be whitespace in
+     * the JSON, every line gets its own data field.
+     */
+    private static byte[] encodeEvent(long sequence, String message) {
+        var data = message.indexOf('\n') >= 0 || message.indexOf('\r') >= 0 ?
+                message.replace("\r", "").replace("\n", "\ndata: ") :
+                message;
+
+        return ("id: " + sequence + "\ndata: " + data + "\n\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the topic of a message: the subscription type for notifications,
+     * the message type for everything else.
+     */
+    private static String getMessageTopic(String message) {
+        try {
+            var envelope = EventSubEnvelope.parse(message);
+
+            return envelope.getSubscriptionType() != null ?
+                    envelope.getSubscriptionType() :
+                    envelope.getMessageType();
+        }
+        catch (JSONException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * One open event stream with its queue.
+     */
+    private final class Stream {
+
+        private final HttpExchange exchange;
+
+        private final int capacity;
+
+        // Queued events, guarded by this
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private boolean writing = false;
+
+        private volatile boolean closed = false;
+
+        // Journal range to send first, set before the stream is registered
+        private long resumeFrom = -1;
+        private long resumeTo = -1;
+
+        /**
+         * The first sequence to send live, guarded by the manager.
+         */
+        private long liveFrom = 0;
+
+        private Stream(HttpExchange exchange, int capacity) {
+            this.exchange = exchange;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Queues an event and starts a writer task if there is none.
+         */
+        private void enqueue(byte[] event) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+
+                // Too slow, it can resume later
+                if (queue.size() >= capacity) {
+                    logger.log(Level.WARNING, "Event stream of {0} overflowed, closed", exchange.getRemoteAddress());
+                    queue.clear();
+                    closed = true;
+                }
+                else {
+                    queue.add(event);
+                }
+
+                if (writing) {
+                    return;
+                }
+
+                writing = true;
+            }
+
+            var executor = writerExecutor;
+
+            if (executor != null) {
+                try {
+                    executor.execute(this::write);
+                    return;
+                }
+                catch (RejectedExecutionException ex) {
+                    // Stopped meanwhile
+                }
+            }
+
+            close();
+        }
+
+        /**
+         * Writes the queued events until the queue is empty.
+         */
+        private void write() {
+            var out = exchange.getResponseBody();
+            var batch = new ArrayList<byte[]>();
+
+            try {
+                if (resumeFrom >= 0) {
+                    resume(this, out);
+                    resumeFrom = -1;
+                }
+
+                while (true) {
+                    synchronized (this) {
+                        if (closed) {
+                            break;
+                        }
+
+                        if (queue.isEmpty()) {
+                            writing = false;
+                            return;
+                        }
+
+                        batch.addAll(queue);
+                        queue.clear();
+                    }
+
+                    for (var event : batch) {
+                        out.write(event);
+                    }
+
+                    out.flush();
+                    batch.clear();
+                }
+            }
+            catch (IOException ex) {
+                // Client went away
+            }
+
+            close();
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+            }
+
+            if (streams.remove(this)) {
+                subscriptions.removeClient(this);
+                exchange.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,800 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the JAR's HTML resources and the files of the {@code html}
+ * directory from memory.
+ * <p>
+ * An asset is read once and kept as immutable byte arrays: the content, its
+ * gzip and deflate compressed variants (if they are smaller) and a strong
+ * ETag from the SHA-256 of the content. Every variant has its own ETag
+ * ({@code -gzip} and {@code -deflate} suffix), as the standard requires
+ * for different representations. Responses carry the ETag, so the
+ * browser sources reloading the pages get a 304 without a body as long as
+ * nothing changed. The {@code html} directory is watched by a
+ * {@link WatchService}, a changed file is dropped from the cache and read
+ * again on the next request.
+ * <p>
+ * Like the {@code SimpleFileServer} it replaces, only the files really
+ * inside the {@code html} directory are served (links are followed before
+ * checking), hidden files are not served, a directory URL without the
+ * trailing slash is redirected, and a directory without {@code index.html}
+ * gets a listing.
+ *
+ * @author mosomate
+ */
+public class StaticAssetCache {
+
+    private static final Logger logger = Logger.getLogger(StaticAssetCache.class.getName());
+
+    /**
+     * Larger files are served from the disk without caching.
+     */
+    private static final int MAX_ASSET_SIZE = 8 << 20;
+
+    /**
+     * Total size of the cached assets, with their variants.
+     */
+    private static final long MAX_CACHE_SIZE = 64 << 20;
+
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json; charset=utf-8"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("mp3", "audio/mpeg"),
+            Map.entry("ogg", "audio/ogg"),
+            Map.entry("wav", "audio/wav"),
+            Map.entry("mp4", "video/mp4"),
+            Map.entry("webm", "video/webm")
+    );
+
+    /**
+     * An asset in memory.
+     *
+     * @param content the original bytes
+     * @param gzip gzip compressed content, null if not worth it
+     * @param deflate deflate compressed content, null if not worth it
+     * @param etag quoted strong entity tag of the original content
+     * @param contentType value of the Content-Type header
+     */
+    public record Asset(byte[] content, byte[] gzip, byte[] deflate, String etag, String contentType) {
+
+        /**
+         * @param encoding content coding of the variant, null for the
+         * original content
+         * @return quoted strong entity tag of the variant
+         */
+        public String etag(String encoding) {
+            if (encoding == null) {
+                return etag;
+            }
+
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        private long size() {
+            return content.length +
+                    (gzip != null ? gzip.length : 0) +
+                    (deflate != null ? deflate.length : 0);
+        }
+    }
+
+    private final Path htmlDir;
+
+    private final Map<String, Asset> resources = new ConcurrentHashMap<>();
+
+    private final Map<Path, Asset> files = new ConcurrentHashMap<>();
+
+    /**
+     * Size of the cached assets.
+     */
+    private final AtomicLong cacheSize = new AtomicLong();
+
+    /**
+     * Increased by every invalidation, a file read before it is not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile WatchService watchService;
+
+    // Metrics
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    /**
+     * Creates a new cache.
+     *
+     * @param htmlDir the directory served by {@link #createFileHandler()}
+     */
+    public StaticAssetCache(Path htmlDir) {
+        // Served files are compared to the real path
+        Path realHtmlDir;
+
+        try {
+            realHtmlDir = htmlDir.toRealPath();
+        }
+        catch (IOException ex) {
+            realHtmlDir = htmlDir.toAbsolutePath().normalize();
+        }
+
+        this.htmlDir = realHtmlDir;
+    }
+
+    /**
+     * Starts watching the html directory.
+     */
+    public synchronized void start() {
+        if (watchService != null) {
+            return;
+        }
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerTree(htmlDir);
+        }
+        catch (IOException ex) {
+            // Without watching the files can't be cached
+            logger.log(Level.SEVERE, null, ex);
+            stop();
+            return;
+        }
+
+        var thread = ThreadHelper.newDaemonThreadFactory("html-watch").newThread(this::watch);
+        thread.start();
+    }
+
+    /**
+     * Stops watching and forgets the cached files.
+     */
+    public synchronized void stop() {
+        if (watchService == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+        }
+        catch (IOException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+
+        watchService = null;
+        invalidateFiles(htmlDir);
+    }
+
+    /**
+     * Responds a resource attached to the JAR.
+     *
+     * @param he HTTP request from the server
+     * @param resName full name of the resource
+     * @throws IOException
+     */
+    public void respondResource(HttpExchange he, String resName) throws IOException {
+        var asset = resources.get(resName);
+
+        if (asset != null) {
+            hitCount.incrementAndGet();
+        }
+        else {
+            missCount.incrementAndGet();
+
+            // The path is relative to the classpath root
+            try (var inputStream = WebServerManager.class.getResourceAsStream("/" + resName)) {
+                if (inputStream == null) {
+                    HttpHelper.respondSimpleMessage(he, 404, "Resource " + resName + " was not found!");
+                    return;
+                }
+
+                asset = createAsset(inputStream.readAllBytes(), resName);
+            }
+
+            // Resources never change, no limit is needed for the few of them
+            resources.put(resName, asset);
+        }
+
+        respond(he, asset);
+    }
+
+    /**
+     * Creates the handler of the html directory. Directories are served by
+     * their {@code index.html} or a listing.
+     *
+     * @return the handler
+     */
+    public HttpHandler createFileHandler() {
+        return (HttpExchange he) -> {
+            var method = he.getRequestMethod();
+
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                he.getResponseHeaders().set("Allow", "GET, HEAD");
+                HttpHelper.respondSimpleMessage(he, 405, "Method not allowed!");
+                return;
+            }
+
+            var file = resolve(he);
+
+            if (file != null && Files.isDirectory(file)) {
+                // Relative URLs of the page need the trailing slash
+                var rawPath = he.getRequestURI().getRawPath();
+
+                if (!rawPath.endsWith("/")) {
+                    var rawQuery = he.getRequestURI().getRawQuery();
+
+                    he.getResponseHeaders().set("Location", rawPath + "/" + (rawQuery != null ? "?" + rawQuery : ""));
+                    he.sendResponseHeaders(301, -1);
+                    he.close();
+                    return;
+                }
+
+                var index = file.resolve("index.html");
+
+                if (!Files.exists(index, LinkOption.NOFOLLOW_LINKS)) {
+                    respondListing(he, file);
+                    return;
+                }
+
+                file = toServedPath(index);
+            }
+
+            if (file == null) {
+                HttpHelper.respondSimpleMessage(he, 404, "File was not found!");
+                return;
+            }
+
+            respondFile(he, file);
+        };
+    }
+
+    /**
+     * Finds the file of a request inside the html directory.
+     *
+     * @return the real path of the file or null if it is not served
+     */
+    private Path resolve(HttpExchange he) {
+        var contextPath = he.getHttpContext().getPath();
+        var requestPath = he.getRequestURI().getPath();
+        var relativePath = requestPath.length() > contextPath.length() ?
+                requestPath.substring(contextPath.length()) :
+                "";
+
+        // Hidden files and parent directories are not served
+        for (var segment : relativePath.split("/")) {
+            if (segment.startsWith(".")) {
+                return null;
+            }
+        }
+
+        // Strip leading slashes, the path must stay inside the directory
+        while (relativePath.startsWith("/")) {
+            relativePath = relativePath.substring(1);
+        }
+
+        try {
+            return toServedPath(htmlDir.resolve(relativePath));
+        }
+        catch (RuntimeException ex) {
+            // Invalid path
+            return null;
+        }
+    }
+
+    /**
+     * Follows the links of a path and checks that the target is inside the
+     * html directory and not hidden.
+     *
+     * @param path path of a file or directory
+     * @return the real path or null if it is not served
+     */
+    private Path toServedPath(Path path) {
+        try {
+            var realPath = path.toRealPath();
+
+            if (!realPath.startsWith(htmlDir)) {
+                return null;
+            }
+
+            for (var name : htmlDir.relativize(realPath)) {
+                if (name.toString().startsWith(".")) {
+                    return null;
+                }
+            }
+
+            return !realPath.equals(htmlDir) && Files.isHidden(realPath) ? null : realPath;
+        }
+        catch (IOException ex) {
+            // Not found or not accessible
+            return null;
+        }
+    }
+
+    /**
+     * Lists a directory without {@code index.html}, hidden entries and links
+     * leading outside are left out.
+     */
+    private void respondListing(HttpExchange he, Path dir) throws IOException {
+        var names = new ArrayList<String>();
+
+        try (var entries = Files.list(dir)) {
+            for (var entry : (Iterable<Path>) entries::iterator) {
+                var servedEntry = toServedPath(entry);
+
+                if (servedEntry != null && !entry.getFileName().toString().startsWith(".")) {
+                    names.add(entry.getFileName() + (Files.isDirectory(servedEntry) ? "/" : ""));
+                }
+            }
+        }
+
+        Collections.sort(names);
+
+        var title = escapeHtml(he.getRequestURI().getPath());
+        var html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>")
+                .append(title)
+                .append("</title>\n</head>\n<body>\n<h1>")
+                .append(title)
+                .append("</h1>\n<ul>\n");
+
+        for (var name : names) {
+            String href;
+
+            try {
+                href = new URI(null, null, name, null).getRawPath();
+            }
+            catch (URISyntaxException ex) {
+                continue;
+            }
+
+            html.append("<li><a href=\"")
+                    .append(escapeHtml(href))
+                    .append("\">")
+                    .append(escapeHtml(name))
+                    .append("</a></li>\n");
+        }
+
+        html.append("</ul>\n</body>\n</html>\n");
+
+        var body = html.toString().getBytes(StandardCharsets.UTF_8);
+
+        he.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        he.getResponseHeaders().set("Cache-Control", "no-cache");
+
+        if (he.getRequestMethod().equals("HEAD")) {
+            he.getResponseHeaders().set("Content-Length", Integer.toString(body.length));
+            he.sendResponseHeaders(200, -1);
+            he.close();
+            return;
+        }
+
+        he.sendResponseHeaders(200, body.length);
+
+        try (var os = he.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static String escapeHtml(String text) {
+        var escaped = new StringBuilder(text.length());
+
+        for (var i = 0; i < text.length(); i++) {
+            var c = text.charAt(i);
+
+            switch (c) {
+                case '&' -> escaped.append("&amp;");
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '"' -> escaped.append("&quot;");
+                case '\'' -> escaped.append("&#39;");
+                default -> escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+
+    private void respondFile(HttpExchange he, Path file) throws IOException {
+        var asset = watchService != null ? files.get(file) : null;
+
+        if (asset != null) {
+            hitCount.incrementAndGet();
+            respond(he, asset);
+            return;
+        }
+
+        missCount.incrementAndGet();
+
+        try {
+            if (!Files.isRegularFile(file)) {
+                HttpHelper.respondSimpleMessage(he, 404, "File was not found!");
+                return;
+            }
+
+            // Too large to keep in memory
+            if (Files.size(file) > MAX_ASSET_SIZE) {
+                respondLargeFile(he, file);
+                return;
+            }
+
+            // Changes during the read are noticed by the generation
+            var readGeneration = generation.get();
+
+            asset = createAsset(Files.readAllBytes(file), file.getFileName().toString());
+
+            if (watchService != null &&
+                    readGeneration == generation.get() &&
+                    cacheSize.get() + asset.size() <= MAX_CACHE_SIZE &&
+                    files.putIfAbsent(file, asset) == null) {
+                cacheSize.addAndGet(asset.size());
+            }
+        }
+        catch (NoSuchFileException ex) {
+            HttpHelper.respondSimpleMessage(he, 404, "File was not found!");
+            return;
+        }
+
+        respond(he, asset);
+    }
+
+    /**
+     * Streams a file from the disk, without compression and ETag.
+     */
+    private void respondLargeFile(HttpExchange he, Path file) throws IOException {
+        he.getResponseHeaders().set("Content-Type", getContentType(file.getFileName().toString()));
+
+        if (he.getRequestMethod().equals("HEAD")) {
+            he.getResponseHeaders().set("Content-Length", Long.toString(Files.size(file)));
+            he.sendResponseHeaders(200, -1);
+            he.close();
+            return;
+        }
+
+        he.sendResponseHeaders(200, Files.size(file));
+
+        try (var os = he.getResponseBody()) {
+            Files.copy(file, os);
+        }
+    }
+
+    /**
+     * Sends an asset, compressed if the client accepts it, or a 304 if the
+     * client has the same variant already.
+     */
+    private void respond(HttpExchange he, Asset asset) throws IOException {
+        var headers = he.getResponseHeaders();
+
+        // Pick a variant
+        var body = asset.content();
+        String encoding = null;
+        var acceptEncoding = he.getRequestHeaders().getFirst("Accept-Encoding");
+
+        if (asset.gzip() != null && acceptsEncoding(acceptEncoding, "gzip")) {
+            encoding = "gzip";
+            body = asset.gzip();
+        }
+        else if (asset.deflate() != null && acceptsEncoding(acceptEncoding, "deflate")) {
+            encoding = "deflate";
+            body = asset.deflate();
+        }
+
+        var etag = asset.etag(encoding);
+
+        headers.set("ETag", etag);
+        headers.set("Cache-Control", "no-cache");
+        headers.set("Vary", "Accept-Encoding");
+
+        // The client has the same variant
+        if (matchesETag(he.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+            notModifiedCount.incrementAndGet();
+            he.sendResponseHeaders(304, -1);
+            he.close();
+            return;
+        }
+
+        headers.set("Content-Type", asset.contentType());
+
+        if (encoding != null) {
+            headers.set("Content-Encoding", encoding);
+        }
+
+        if (he.getRequestMethod().equals("HEAD")) {
+            headers.set("Content-Length", Integer.toString(body.length));
+            he.sendResponseHeaders(200, -1);
+            he.close();
+            return;
+        }
+
+        he.sendResponseHeaders(200, body.length);
+
+        try (var os = he.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+
+        for (var candidate : ifNoneMatch.split(",")) {
+            var trimmed = candidate.trim();
+
+            // Weak comparison, as the standard requires for If-None-Match
+            if (trimmed.startsWith("W/")) {
+                trimmed = trimmed.substring(2);
+            }
+
+            if (trimmed.equals("*") || trimmed.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean acceptsEncoding(String acceptEncoding, String encoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+
+        for (var part : acceptEncoding.split(",")) {
+            var parameters = part.trim().split(";");
+
+            if (!parameters[0].trim().equalsIgnoreCase(encoding)) {
+                continue;
+            }
+
+            // Explicitly refused
+            for (var i = 1; i < parameters.length; i++) {
+                var parameter = parameters[i].trim();
+
+                if (parameter.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parameter.substring(2)) > 0;
+                    }
+                    catch (NumberFormatException ex) {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Builds the variants and the ETag of an asset.
+     */
+    private static Asset createAsset(byte[] content, String name) throws IOException {
+        var contentType = getContentType(name);
+        byte[] gzip = null;
+        byte[] deflate = null;
+
+        // Images, fonts, etc. are compressed already
+        if (isCompressible(contentType)) {
+            gzip = compress(content, true);
+            deflate = compress(content, false);
+        }
+
+        return new Asset(content, gzip, deflate, computeETag(content), contentType);
+    }
+
+    /**
+     * @return the compressed content, null if it is not smaller
+     */
+    private static byte[] compress(byte[] content, boolean gzip) throws IOException {
+        var buffer = new ByteArrayOutputStream(content.length / 2 + 64);
+
+        if (gzip) {
+            try (var os = new BestGzipOutputStream(buffer)) {
+                os.write(content);
+            }
+        }
+        else {
+            // Zlib format, that is what HTTP calls deflate
+            var deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+            try (var os = new DeflaterOutputStream(buffer, deflater)) {
+                os.write(content);
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        return buffer.size() < content.length ? buffer.toByteArray() : null;
+    }
+
+    private static String computeETag(byte[] content) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(content);
+
+            return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+        }
+        catch (NoSuchAlgorithmException ex) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String getContentType(String name) {
+        var dot = name.lastIndexOf('.');
+        var extension = dot >= 0 ? name.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+
+        return CONTENT_TYPES.getOrDefault(extension, "application/octet-stream");
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/") ||
+                contentType.startsWith("application/json") ||
+                contentType.equals("image/svg+xml");
+    }
+
+    /**
+     * Registers a directory and its subdirectories to the watch service.
+     */
+    private void registerTree(Path dir) throws IOException {
+        try (var paths = Files.walk(dir)) {
+            for (var path : (Iterable<Path>) paths::iterator) {
+                if (Files.isDirectory(path)) {
+                    path.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE,
+                            StandardWatchEventKinds.ENTRY_MODIFY);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the changed files from the cache until the watch service is
+     * closed.
+     */
+    private void watch() {
+        var currentWatchService = watchService;
+
+        while (currentWatchService != null) {
+            WatchKey key;
+
+            try {
+                key = currentWatchService.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+
+            var dir = (Path) key.watchable();
+
+            for (var event : key.pollEvents()) {
+                // Events were lost, nothing can be trusted
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    invalidateFiles(htmlDir);
+                    continue;
+                }
+
+                var path = dir.resolve((Path) event.context());
+
+                // A whole directory may change, everything under it goes
+                invalidateFiles(path);
+
+                // New directories are watched as well
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        registerTree(path);
+                    }
+                    catch (IOException | ClosedWatchServiceException ex) {
+                        logger.log(Level.WARNING, "Directory {0} could not be watched", path);
+                    }
+                }
+            }
+
+            key.reset();
+        }
+    }
+
+    /**
+     * Removes the cached files at or under a path.
+     */
+    private void invalidateFiles(Path path) {
+        generation.incrementAndGet();
+
+        files.entrySet().removeIf(entry -> {
+            if (entry.getKey().startsWith(path)) {
+                cacheSize.addAndGet(-entry.getValue().size());
+                return true;
+            }
+
+            return false;
+        });
+    }
+
+    /**
+     * @return number of requests served from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of requests that had to read an asset
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return number of 304 responses
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
+
+    /**
+     * @return size of the cached files with their variants in bytes
+     */
+    public long getCacheSize() {
+        return cacheSize.get();
+    }
+
+    /**
+     * Gzip stream with the best compression, the variants are compressed
+     * only once.
+     */
+    private static final class BestGzipOutputStream extends GZIPOutputStream {
+
+        private BestGzipOutputStream(ByteArrayOutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
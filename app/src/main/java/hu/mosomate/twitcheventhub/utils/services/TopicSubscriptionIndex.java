@@ -0,0 +1,204 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which clients are interested in which message types (topics).
+ * Clients that never subscribed receive everything, as well as the ones that
+ * subscribed to {@link #TOPIC_ALL}. Thread-safe.
+ *
+ * @param <C> type of the clients
+ * @author mosomate
+ */
+public class TopicSubscriptionIndex<C> {
+
+    /**
+     * Subscribing to this topic means receiving every message.
+     */
+    public static final String TOPIC_ALL = "*";
+
+    /**
+     * Topic to clients index.
+     */
+    private final Map<String, Set<C>> topicClients = new ConcurrentHashMap<>();
+
+    /**
+     * Client to topics index, used for cleaning up.
+     */
+    private final Map<C, Set<String>> clientTopics = new ConcurrentHashMap<>();
+
+    /**
+     * Clients receiving every message.
+     */
+    private final Set<C> unfilteredClients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Clients receiving only their topics.
+     */
+    private final Set<C> filteredClients = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Adds a new client receiving every message until it subscribes.
+     *
+     * @param client the new client
+     */
+    public void addClient(C client) {
+        unfilteredClients.add(client);
+    }
+
+    /**
+     * Removes a client with all its subscriptions.
+     *
+     * @param client the client to remove
+     */
+    public void removeClient(C client) {
+        unfilteredClients.remove(client);
+        filteredClients.remove(client);
+
+        var topics = clientTopics.remove(client);
+
+        if (topics == null) {
+            return;
+        }
+
+        for (var topic : topics) {
+            removeFromTopic(client, topic);
+        }
+    }
+
+    /**
+     * Subscribes a client to topics. From now on, the client receives only
+     * these topics, unless one of them is {@link #TOPIC_ALL}.
+     *
+     * @param client the client
+     * @param topics the topics to subscribe to
+     */
+    public void subscribe(C client, Collection<String> topics) {
+        var subscribedTopics = clientTopics.computeIfAbsent(client, (C c) -> ConcurrentHashMap.newKeySet());
+
+        for (var topic : topics) {
+            if (TOPIC_ALL.equals(topic)) {
+                unfilteredClients.add(client);
+            }
+            else {
+                addToTopic(client, topic);
+            }
+
+            subscribedTopics.add(topic);
+        }
+
+        // Subscribed clients are filtered from now on
+        if (subscribedTopics.contains(TOPIC_ALL)) {
+            filteredClients.remove(client);
+        }
+        else {
+            filteredClients.add(client);
+            unfilteredClients.remove(client);
+        }
+    }
+
+    /**
+     * Unsubscribes a client from topics.
+     *
+     * @param client the client
+     * @param topics the topics to unsubscribe from
+     */
+    public void unsubscribe(C client, Collection<String> topics) {
+        var subscribedTopics = clientTopics.computeIfAbsent(client, (C c) -> ConcurrentHashMap.newKeySet());
+
+        for (var topic : topics) {
+            subscribedTopics.remove(topic);
+
+            if (TOPIC_ALL.equals(topic)) {
+                filteredClients.add(client);
+                unfilteredClients.remove(client);
+            }
+            else {
+                removeFromTopic(client, topic);
+            }
+        }
+    }
+
+    /**
+     * Adds a client to a topic. Done inside compute, so a concurrent
+     * {@link #removeFromTopic} can't drop the set in the meantime.
+     */
+    private void addToTopic(C client, String topic) {
+        topicClients.compute(topic, (String t, Set<C> clients) -> {
+            var topicSet = clients != null ? clients : ConcurrentHashMap.<C>newKeySet();
+            topicSet.add(client);
+
+            return topicSet;
+        });
+    }
+
+    private void removeFromTopic(C client, String topic) {
+        if (TOPIC_ALL.equals(topic)) {
+            return;
+        }
+
+        topicClients.computeIfPresent(topic, (String t, Set<C> clients) -> {
+            clients.remove(client);
+
+            // Drop empty sets
+            return clients.isEmpty() ? null : clients;
+        });
+    }
+
+    /**
+     * @return true if every client receives every message
+     */
+    public boolean isUnfiltered() {
+        return filteredClients.isEmpty();
+    }
+
+    /**
+     * Checks if a client is interested in a topic.
+     *
+     * @param client the client
+     * @param topic topic of the message, null if unknown
+     * @return true if the client receives the topic
+     */
+    public boolean isSubscribed(C client, String topic) {
+        if (unfilteredClients.contains(client)) {
+            return true;
+        }
+
+        var topicSet = topic != null ? topicClients.get(topic) : null;
+
+        return topicSet != null && topicSet.contains(client);
+    }
+
+    /**
+     * Collects the clients interested in a topic.
+     *
+     * @param topic topic of the message, null if unknown
+     * @return the interested clients
+     */
+    public List<C> getRecipients(String topic) {
+        var topicSet = topic != null ? topicClients.get(topic) : null;
+        var recipients = new ArrayList<C>(unfilteredClients.size() + (topicSet != null ? topicSet.size() : 0));
+
+        recipients.addAll(unfilteredClients);
+
+        if (topicSet != null) {
+            for (var client : topicSet) {
+                // Avoid duplicates for clients subscribed to everything as well
+                if (!unfilteredClients.contains(client)) {
+                    recipients.add(client);
+                }
+            }
+        }
+
+        return recipients;
+    }
+}
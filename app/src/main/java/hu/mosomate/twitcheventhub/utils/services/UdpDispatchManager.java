@@ -4,29 +4,117 @@
  */
 package hu.mosomate.twitcheventhub.utils.services;
 
+import hu.mosomate.twitcheventhub.AppSettings;
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.SwingWorker;
+import java.util.zip.CRC32;
 
 /**
  * Manager class for dispatching EventSub messages as UDP packages.
+ * <p>
+ * Messages are sent through a {@link DatagramChannel}. The sender thread
+ * drains the queue in batches and encodes every message once into a reused
+ * direct buffer, so sending allocates nothing on the heap.
+ * <p>
+ * In framing mode every datagram gets a small header and large messages are
+ * split into fragments fitting the configured MTU. See
+ * {@link UdpFragmentReassembler} for the format and for receiving them.
+ * <p>
+ * Targets are given as a port of the local host, or as {@code host:port}.
+ * When a target is a multicast group, a single send reaches every machine
+ * that joined it, the TTL and the outgoing interface come from the settings.
  * 
  * @author mosomate
  */
-public class UdpDispatchManager {
+public class UdpDispatchManager implements DispatchSink {
     
     private static final Logger logger = Logger.getLogger(UdpDispatchManager.class.getName());
     
     /**
-     * Background thread for running the message queue.
+     * Maximum number of messages waiting to be sent.
      */
-    private volatile SwingWorker<Void, Object> worker;
+    private static final int QUEUE_CAPACITY = 4096;
+    
+    /**
+     * Maximum number of messages taken from the queue at once.
+     */
+    private static final int BATCH_SIZE = 64;
+    
+    /**
+     * The largest payload of an IPv4 UDP datagram.
+     */
+    private static final int MAX_DATAGRAM_SIZE = 65_507;
+    
+    /**
+     * The largest message that can be sent in framing mode.
+     */
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    
+    /**
+     * Default datagram size in framing mode, safe on most networks.
+     */
+    public static final int DEFAULT_MTU = 1400;
+    
+    /**
+     * Smallest allowed MTU, the minimum datagram size every IPv4 host must
+     * accept.
+     */
+    public static final int MIN_MTU = 576;
+    
+    /**
+     * The fragment index and count are unsigned shorts in the header.
+     */
+    private static final int MAX_FRAGMENT_COUNT = 0xFFFF;
+    
+    /**
+     * Default multicast TTL, stays on the local network.
+     */
+    public static final int DEFAULT_MULTICAST_TTL = 1;
+    
+    /**
+     * A message with its sequence number in the hub.
+     */
+    private record PendingDatagram(long sequence, String message) {
+    }
+    
+    /**
+     * Dedicated background thread for running the message queue.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            ThreadHelper.newDaemonThreadFactory("udp-dispatch")
+    );
+    
+    /**
+     * Currently running message queue task.
+     */
+    private volatile Future<?> worker;
+    
+    /**
+     * Indicates if the message queue is being processed.
+     */
+    private volatile boolean running = false;
     
     /**
      * Called when the service has started or stopped.
@@ -34,34 +122,66 @@ public class UdpDispatchManager {
     private final ActionListener listener;
     
     /**
-     * Properly synchronized queue for the messages to be dispatched. 
+     * Properly synchronized, bounded queue for the messages to be dispatched. 
      */
-    private final LinkedBlockingQueue<String> messageQueue = new LinkedBlockingQueue<>();
+    private final ArrayBlockingQueue<PendingDatagram> messageQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    
+    // Reused by the sender thread only
+    private final List<PendingDatagram> batch = new ArrayList<>(BATCH_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+    private final CRC32 crc32 = new CRC32();
+    private CharBuffer charBuffer = CharBuffer.allocate(4096);
+    private ByteBuffer packetBuffer;
+    
+    // Framing settings of the running service
+    private volatile boolean framing = false;
+    private volatile int mtu = DEFAULT_MTU;
     
     public UdpDispatchManager(ActionListener listener) {
         this.listener = listener;
     }
 
+    @Override
+    public String getName() {
+        return "udp";
+    }
+
     /**
      * Puts a message into the queue for dispatching.
      * 
+     * @param sequence sequence number of the message in the hub
      * @param message the message to be dispatched
-     * @return true is message sending was successful
+     * @return true if the message was queued
      */
-    public boolean sendMessage(String message) {
+    @Override
+    public boolean offer(long sequence, String message) {
         if (worker == null || worker.isDone()) {
             return false;
         }
         
-        return messageQueue.offer(message);
+        return messageQueue.offer(new PendingDatagram(sequence, message));
+    }
+    
+    /**
+     * Starts the service for the persisted ports.
+     */
+    @Override
+    public void start() {
+        if (AppSettings.udpPorts != null && !AppSettings.udpPorts.isEmpty()) {
+            start(AppSettings.udpPorts);
+        }
     }
     
     /**
-     * Starts the service for the given ports.
+     * Starts the service for the given targets.
      * 
-     * @param ports ports to dispatch messages to
+     * @param ports targets to dispatch messages to, a port of the local host
+     * or {@code host:port}
      */
-    public void start(List<Integer> ports) {
+    public void start(List<String> ports) {
         if (worker != null && !worker.isDone()) {
             return;
         }
@@ -69,52 +189,273 @@ public class UdpDispatchManager {
         // Clear message queue
         messageQueue.clear();
         
+        // Framing settings
+        framing = AppSettings.udpFraming != null && AppSettings.udpFraming;
+        mtu = AppSettings.udpMtu != null ?
+                Math.max(MIN_MTU, Math.min(AppSettings.udpMtu, MAX_DATAGRAM_SIZE)) :
+                DEFAULT_MTU;
+        
+        if (packetBuffer == null || packetBuffer.capacity() != mtu) {
+            packetBuffer = ByteBuffer.allocateDirect(mtu);
+        }
+        
         // Start new worker
-        worker = new SwingWorker<Void, Object>() {
-            @Override
-            protected Void doInBackground() throws Exception {
-                try (DatagramSocket socket = new DatagramSocket()) {
-                    InetAddress address = InetAddress.getLocalHost();
-
-                    // Indication of service start
-                    publish();
-
-                    while (!isCancelled()) {
-                        String message = messageQueue.take();
+        worker = executor.submit(() -> {
+            // Resolve targets only once
+            List<InetSocketAddress> targets;
+            
+            try {
+                targets = resolveTargets(ports);
+            }
+            catch (IOException | IllegalArgumentException ex) {
+                logger.log(Level.SEVERE, null, ex);
+                listener.onUdpMessageSenderStopped();
+                return;
+            }
+            
+            try (var channel = openChannel(targets)) {
+                // Indication of service start
+                running = true;
+                listener.onUdpMessageSenderStarted();
 
-                        try {
-                            byte[] buffer = message.getBytes();
+                while (!Thread.currentThread().isInterrupted()) {
+                    // Wait for a message, then take the rest of the batch
+                    batch.add(messageQueue.take());
+                    messageQueue.drainTo(batch, BATCH_SIZE - 1);
 
-                            // Send to all ports
-                            for (int port : ports) {
-                                DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, port);
-                                socket.send(packet);
-                            }
-                        } catch (IOException ex) {
-                            logger.log(Level.SEVERE, null, ex);
-                        }
+                    for (var i = 0; i < batch.size(); i++) {
+                        var datagram = batch.get(i);
+                        sendMessage(channel, datagram.sequence(), datagram.message(), targets);
                     }
+                    
+                    batch.clear();
                 }
-
-                return null;
             }
-
-            @Override
-            protected void done() {
+            catch (InterruptedException | ClosedByInterruptException ex) {
+                // Service was stopped
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, null, ex);
+            }
+            finally {
+                batch.clear();
+                running = false;
                 listener.onUdpMessageSenderStopped();
             }
-
-            @Override
-            protected void process(List<Object> chunks) {
-                // Processing has started
-                listener.onUdpMessageSenderStarted();
+        });
+    }
+    
+    /**
+     * Resolves the target strings into addresses.
+     * 
+     * @param ports a port of the local host or {@code host:port} each
+     * @return the resolved addresses
+     * @throws IOException if a host can't be resolved
+     */
+    private static List<InetSocketAddress> resolveTargets(List<String> ports) throws IOException {
+        var targets = new ArrayList<InetSocketAddress>(ports.size());
+        
+        for (var port : ports) {
+            var separator = port.lastIndexOf(':');
+            
+            // Port only, local host as before
+            if (separator < 0) {
+                targets.add(new InetSocketAddress(InetAddress.getLocalHost(), Integer.parseInt(port.trim())));
+                continue;
             }
-        };
+            
+            // Host and port, IPv6 addresses in brackets
+            var host = port.substring(0, separator).trim();
+            
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+            
+            targets.add(new InetSocketAddress(InetAddress.getByName(host), Integer.parseInt(port.substring(separator + 1).trim())));
+        }
+        
+        return targets;
+    }
+    
+    /**
+     * Opens a channel, configured for multicast if there is a multicast
+     * group among the targets.
+     * 
+     * @param targets the resolved targets
+     * @return the open channel
+     * @throws IOException if the channel can't be opened or configured
+     */
+    private static DatagramChannel openChannel(List<InetSocketAddress> targets) throws IOException {
+        InetAddress group = null;
+        
+        for (var target : targets) {
+            if (target.getAddress().isMulticastAddress()) {
+                group = target.getAddress();
+                break;
+            }
+        }
+        
+        // Unicast only
+        if (group == null) {
+            return DatagramChannel.open();
+        }
+        
+        // Channel of the group's protocol family
+        var channel = DatagramChannel.open(group instanceof Inet6Address ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
+        
+        try {
+            var ttl = AppSettings.udpMulticastTtl != null ? AppSettings.udpMulticastTtl : DEFAULT_MULTICAST_TTL;
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            
+            // Outgoing interface, by name or by one of its addresses
+            var interfaceName = AppSettings.udpMulticastInterface;
+            
+            if (interfaceName != null && !interfaceName.isBlank()) {
+                var networkInterface = NetworkInterface.getByName(interfaceName.trim());
+                
+                if (networkInterface == null) {
+                    networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(interfaceName.trim()));
+                }
+                
+                if (networkInterface == null) {
+                    throw new IOException("Unknown network interface: " + interfaceName);
+                }
+                
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            }
+        }
+        catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        
+        return channel;
+    }
+    
+    /**
+     * Encodes a message into the send buffer and sends it to all targets.
+     * 
+     * @param channel open channel
+     * @param sequence sequence number of the message in the hub
+     * @param message the message to send
+     * @param targets the addresses to send to
+     * @throws ClosedByInterruptException if the service was stopped
+     */
+    private void sendMessage(DatagramChannel channel, long sequence, String message, List<InetSocketAddress> targets) throws ClosedByInterruptException {
+        if (!encode(message) || (!framing && sendBuffer.remaining() > MAX_DATAGRAM_SIZE)) {
+            logger.log(Level.WARNING, "Message too large for a UDP datagram, dropped");
+            return;
+        }
+        
+        // Plain mode, the message is the datagram
+        if (!framing) {
+            sendToTargets(channel, sendBuffer, targets);
+            return;
+        }
+        
+        // CRC of the whole message
+        crc32.reset();
+        crc32.update(sendBuffer);
+        sendBuffer.rewind();
+        
+        var crc = (int) crc32.getValue();
+        var messageLength = sendBuffer.remaining();
+        var fragmentSize = mtu - UdpFragmentReassembler.HEADER_SIZE;
+        var fragmentCount = Math.max(1, (messageLength + fragmentSize - 1) / fragmentSize);
+        
+        // Would wrap around in the header
+        if (fragmentCount > MAX_FRAGMENT_COUNT) {
+            logger.log(Level.WARNING, "Message needs {0} UDP fragments, dropped", fragmentCount);
+            return;
+        }
+        
+        // Send fragments
+        for (var fragmentIndex = 0; fragmentIndex < fragmentCount; fragmentIndex++) {
+            var fragmentStart = fragmentIndex * fragmentSize;
+            var fragmentEnd = Math.min(messageLength, fragmentStart + fragmentSize);
+            
+            // Header
+            packetBuffer.clear();
+            packetBuffer.putShort(UdpFragmentReassembler.MAGIC);
+            packetBuffer.put(UdpFragmentReassembler.VERSION);
+            packetBuffer.put((byte) 0);
+            packetBuffer.putLong(sequence);
+            packetBuffer.putShort((short) fragmentIndex);
+            packetBuffer.putShort((short) fragmentCount);
+            packetBuffer.putInt(crc);
+            
+            // Part of the message
+            sendBuffer.limit(fragmentEnd).position(fragmentStart);
+            packetBuffer.put(sendBuffer);
+            sendBuffer.limit(messageLength);
+            
+            packetBuffer.flip();
+            sendToTargets(channel, packetBuffer, targets);
+        }
+    }
+    
+    /**
+     * Sends the content of a buffer to all targets.
+     * 
+     * @param channel open channel
+     * @param buffer buffer ready for reading
+     * @param targets the addresses to send to
+     * @throws ClosedByInterruptException if the service was stopped
+     */
+    private void sendToTargets(DatagramChannel channel, ByteBuffer buffer, List<InetSocketAddress> targets) throws ClosedByInterruptException {
+        var start = buffer.position();
+        
+        for (var i = 0; i < targets.size(); i++) {
+            try {
+                buffer.position(start);
+                channel.send(buffer, targets.get(i));
+            }
+            catch (ClosedByInterruptException ex) {
+                throw ex;
+            }
+            catch (IOException ex) {
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /**
+     * Encodes a message as UTF-8 into the send buffer. The buffer is ready for
+     * reading afterwards. Unpaired surrogates are replaced, like
+     * {@link String#getBytes} does.
+     * 
+     * @param message the message to encode
+     * @return false if the message didn't fit or couldn't be encoded
+     */
+    private boolean encode(String message) {
+        // Grow char buffer only for unusually large messages
+        if (charBuffer.capacity() < message.length()) {
+            charBuffer = CharBuffer.allocate(message.length());
+        }
+        
+        charBuffer.clear();
+        charBuffer.put(message).flip();
+        
+        sendBuffer.clear();
+        encoder.reset();
+        
+        CoderResult result = encoder.encode(charBuffer, sendBuffer, true);
+        
+        if (result.isError()) {
+            logger.log(Level.WARNING, "Message could not be encoded: {0}", result);
+            return false;
+        }
+        
+        if (result.isOverflow() || encoder.flush(sendBuffer).isOverflow()) {
+            return false;
+        }
+        
+        sendBuffer.flip();
         
-        // Start service
-        worker.execute();
+        return true;
     }
     
+    @Override
     public void stop() {
         if (worker == null || worker.isDone()) {
             return;
@@ -123,8 +464,9 @@ public class UdpDispatchManager {
         worker.cancel(true);
     }
     
+    @Override
     public boolean isRunning() {
-        return worker != null && !worker.isDone();
+        return running;
     }
     
     public interface ActionListener {
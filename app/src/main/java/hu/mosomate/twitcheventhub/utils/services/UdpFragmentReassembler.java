@@ -0,0 +1,236 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reference implementation for receiving the framed UDP messages of
+ * {@link UdpDispatchManager}. Depends only on the JDK, so it can be copied
+ * into any Java consumer.
+ * <p>
+ * In framing mode every datagram starts with a 20 byte big-endian header:
+ * <pre>
+ * offset size field
+ *      0    2 magic, "EH"
+ *      2    1 version, currently 1
+ *      3    1 flags, currently 0
+ *      4    8 message sequence number
+ *     12    2 fragment index, starting from 0
+ *     14    2 fragment count
+ *     16    4 CRC32 of the whole UTF-8 message
+ * </pre>
+ * The header is followed by the fragment's part of the message. A message
+ * is complete when all fragments with the same sequence number arrived and
+ * the CRC of the joined parts matches.
+ * <p>
+ * Not thread-safe, use one instance per receiving thread.
+ *
+ * @author mosomate
+ */
+public class UdpFragmentReassembler {
+
+    public static final short MAGIC = 0x4548;
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 20;
+
+    /**
+     * A message with some of its fragments received.
+     */
+    private static final class PendingMessage {
+
+        private final byte[][] fragments;
+
+        private final int crc;
+
+        private final long firstReceived;
+
+        private int receivedCount = 0;
+
+        private int totalLength = 0;
+
+        private PendingMessage(int fragmentCount, int crc, long firstReceived) {
+            this.fragments = new byte[fragmentCount][];
+            this.crc = crc;
+            this.firstReceived = firstReceived;
+        }
+    }
+
+    private final int maxPendingMessages;
+
+    private final long timeoutMillis;
+
+    /**
+     * Incomplete messages by sequence number, oldest first.
+     */
+    private final LinkedHashMap<Long, PendingMessage> pendingMessages = new LinkedHashMap<>();
+
+    private final CRC32 crc32 = new CRC32();
+
+    private long completedCount = 0;
+
+    private long droppedCount = 0;
+
+    /**
+     * Creates a new reassembler.
+     *
+     * @param maxPendingMessages incomplete messages kept at most, the oldest
+     * is dropped above this
+     * @param timeoutMillis incomplete messages older than this are dropped
+     */
+    public UdpFragmentReassembler(int maxPendingMessages, long timeoutMillis) {
+        this.maxPendingMessages = maxPendingMessages;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Processes a received datagram.
+     *
+     * @param data buffer of the datagram
+     * @param offset start of the datagram in the buffer
+     * @param length length of the datagram
+     * @return the complete message if this was its last missing fragment,
+     * null otherwise
+     */
+    public String accept(byte[] data, int offset, int length) {
+        return accept(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Processes a received datagram.
+     *
+     * @param datagram the datagram between position and limit
+     * @return the complete message if this was its last missing fragment,
+     * null otherwise
+     */
+    public String accept(ByteBuffer datagram) {
+        var now = System.currentTimeMillis();
+
+        // Drop stale messages
+        expire(now);
+
+        // Check header
+        if (datagram.remaining() < HEADER_SIZE ||
+                datagram.getShort(datagram.position()) != MAGIC ||
+                datagram.get(datagram.position() + 2) != VERSION
+        ) {
+            droppedCount++;
+            return null;
+        }
+
+        var header = datagram.duplicate();
+        header.position(header.position() + 4);
+
+        var sequence = header.getLong();
+        var fragmentIndex = Short.toUnsignedInt(header.getShort());
+        var fragmentCount = Short.toUnsignedInt(header.getShort());
+        var crc = header.getInt();
+
+        if (fragmentCount == 0 || fragmentIndex >= fragmentCount) {
+            droppedCount++;
+            return null;
+        }
+
+        // Copy the fragment's part of the message
+        var part = new byte[header.remaining()];
+        header.get(part);
+
+        // Single fragment, no need to wait
+        if (fragmentCount == 1) {
+            return complete(new byte[][] { part }, part.length, crc);
+        }
+
+        // Find or start the message
+        var pending = pendingMessages.get(sequence);
+
+        if (pending == null) {
+            pending = new PendingMessage(fragmentCount, crc, now);
+            pendingMessages.put(sequence, pending);
+
+            // Keep memory bounded
+            if (pendingMessages.size() > maxPendingMessages) {
+                var oldest = pendingMessages.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+                droppedCount++;
+            }
+        }
+
+        // Duplicate or inconsistent fragment
+        if (pending.fragments.length != fragmentCount || pending.fragments[fragmentIndex] != null) {
+            return null;
+        }
+
+        pending.fragments[fragmentIndex] = part;
+        pending.receivedCount++;
+        pending.totalLength += part.length;
+
+        if (pending.receivedCount < fragmentCount) {
+            return null;
+        }
+
+        // All fragments are here
+        pendingMessages.remove(sequence);
+
+        return complete(pending.fragments, pending.totalLength, pending.crc);
+    }
+
+    /**
+     * Joins the fragments and checks the CRC.
+     */
+    private String complete(byte[][] fragments, int totalLength, int crc) {
+        var message = new byte[totalLength];
+        var position = 0;
+
+        for (var fragment : fragments) {
+            System.arraycopy(fragment, 0, message, position, fragment.length);
+            position += fragment.length;
+        }
+
+        crc32.reset();
+        crc32.update(message);
+
+        if ((int) crc32.getValue() != crc) {
+            droppedCount++;
+            return null;
+        }
+
+        completedCount++;
+
+        return new String(message, StandardCharsets.UTF_8);
+    }
+
+    private void expire(long now) {
+        for (Iterator<Map.Entry<Long, PendingMessage>> it = pendingMessages.entrySet().iterator(); it.hasNext();) {
+            // Entries are in arrival order, the first fresh one ends the search
+            if (now - it.next().getValue().firstReceived < timeoutMillis) {
+                return;
+            }
+
+            it.remove();
+            droppedCount++;
+        }
+    }
+
+    /**
+     * @return number of successfully reassembled messages
+     */
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    /**
+     * @return number of messages dropped because of timeout, overflow or
+     * CRC mismatch, and number of invalid datagrams
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -5,18 +5,29 @@
 package hu.mosomate.twitcheventhub.utils.services;
 
 import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
-import com.sun.net.httpserver.SimpleFileServer;
+import hu.mosomate.twitcheventhub.AppSettings;
 import hu.mosomate.twitcheventhub.utils.FileHelper;
 import hu.mosomate.twitcheventhub.utils.HttpHelper;
 import hu.mosomate.twitcheventhub.utils.oauth.OAuthLoginListener;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Manages the web server for OAuth redirect and static content serving.
+ * <p>
+ * Every request is handled on its own virtual thread, so a slow download or
+ * a long query can't hold up the others (e.g. the OAuth redirect). The
+ * handling time of every context is measured by a
+ * {@link RequestLatencyFilter}.
  * 
  * @author mosomate
  */
@@ -24,15 +35,66 @@ public class WebServerManager {
     
     private static final Logger logger = Logger.getLogger(WebServerManager.class.getName());
     
+    public static final int PORT = 8082;
+    
+    /**
+     * Maximum number of connections waiting to be accepted.
+     */
+    public static final int DEFAULT_BACKLOG = 128;
+    
     private HttpServer server;
     
+    /**
+     * Runs the handlers, one virtual thread per request.
+     */
+    private ExecutorService executor;
+    
     private final OAuthLoginListener oAuthLoginListener;
     
+    /**
+     * Additional handlers registered by other services.
+     */
+    private final Map<String, HttpHandler> extraContexts = new ConcurrentHashMap<>();
+    
+    /**
+     * Latency of the contexts by path, kept over restarts.
+     */
+    private final Map<String, RequestLatencyFilter> latencyFilters = new ConcurrentHashMap<>();
+    
+    /**
+     * Pages of the JAR and the html directory in memory.
+     */
+    private final StaticAssetCache assetCache = new StaticAssetCache(FileHelper.getHtmlDir().toPath());
+    
     public WebServerManager(OAuthLoginListener listener) {
         oAuthLoginListener = listener;
     }
     
-    public void start() {
+    /**
+     * Registers an additional handler. Takes effect immediately if the server
+     * is running, otherwise on start.
+     * 
+     * @param path the context path, e.g. "/replay"
+     * @param handler handler of the requests
+     */
+    public synchronized void registerContext(String path, HttpHandler handler) {
+        extraContexts.put(path, handler);
+        
+        if (isRunning()) {
+            createContext(path, handler);
+        }
+    }
+    
+    /**
+     * Creates a context on the running server with latency measurement.
+     */
+    private void createContext(String path, HttpHandler handler) {
+        var filter = latencyFilters.computeIfAbsent(path, RequestLatencyFilter::new);
+        
+        server.createContext(path, handler).getFilters().add(filter);
+    }
+    
+    public synchronized void start() {
         // Don't start again
         if (isRunning()) {
             return;
@@ -40,11 +102,24 @@ public class WebServerManager {
         
         // Try to start
         try {
+            // Address and backlog, every interface by default
+            var bindAddress = AppSettings.webServerBindAddress != null && !AppSettings.webServerBindAddress.isEmpty() ?
+                    new InetSocketAddress(AppSettings.webServerBindAddress, PORT) :
+                    new InetSocketAddress(PORT);
+            
+            var backlog = AppSettings.webServerBacklog != null ?
+                    AppSettings.webServerBacklog :
+                    DEFAULT_BACKLOG;
+            
             // Create new web server
-            server = HttpServer.create(new InetSocketAddress(8082), 0);
+            server = HttpServer.create(bindAddress, backlog);
+            
+            // Handlers run on virtual threads instead of the dispatcher
+            executor = Executors.newVirtualThreadPerTaskExecutor();
+            server.setExecutor(executor);
             
             // Handler for OAuth access token
-            server.createContext("/oauth_token", (HttpExchange he) -> {
+            createContext("/oauth_token", (HttpExchange he) -> {
                 // Get params from request
                 var postParams = HttpHelper.parsePostBody(he);
                 
@@ -61,20 +136,24 @@ public class WebServerManager {
                 oAuthLoginListener.onOAuthLoginSuccess(accessToken);
                 
                 // Respond success
-                HttpHelper.respondHtmlResourceFile(he, "oauth_token.html");
+                assetCache.respondResource(he, "oauth_token.html");
             });
             
             // Handler for OAuth redirection
-            server.createContext("/oauth", (HttpExchange he) -> {
-                HttpHelper.respondHtmlResourceFile(he, "oauth.html");
+            createContext("/oauth", (HttpExchange he) -> {
+                assetCache.respondResource(he, "oauth.html");
             });
             
+            // Handlers of other services
+            extraContexts.forEach(this::createContext);
+            
             // Handler for files
-            server.createContext("/html", SimpleFileServer.createFileHandler(FileHelper.getHtmlDir().toPath()));
+            assetCache.start();
+            createContext("/html", assetCache.createFileHandler());
 
             // Handler for index page
-            server.createContext("/", (HttpExchange he) -> {
-                HttpHelper.respondHtmlResourceFile(he, "index.html");
+            createContext("/", (HttpExchange he) -> {
+                assetCache.respondResource(he, "index.html");
             });
             
             // Start server
@@ -83,19 +162,46 @@ public class WebServerManager {
         catch (IOException ex) {
             logger.log(Level.SEVERE, null, ex);
             server = null;
+            
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
         }
     }
     
-    public void stop() {
+    public synchronized void stop() {
         if (!isRunning()) {
             return;
         }
         
         server.stop(0);
         server = null;
+        
+        assetCache.stop();
+        
+        // Handlers still running are left to finish
+        executor.shutdown();
+        executor = null;
     }
     
     public boolean isRunning() {
         return server != null;
     }
+    
+    /**
+     * @return the pages served from memory
+     */
+    public StaticAssetCache getAssetCache() {
+        return assetCache;
+    }
+    
+    /**
+     * Gets the latency measurements of the contexts created so far.
+     * 
+     * @return the filters measuring the contexts
+     */
+    public List<RequestLatencyFilter> getLatencyFilters() {
+        return List.copyOf(latencyFilters.values());
+    }
 }
@@ -0,0 +1,336 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package hu.mosomate.twitcheventhub.utils.services;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.CloseFrame;
+
+/**
+ * Bounded outbound queue of one WebSocket client. Messages are handed over to
+ * the socket only while its buffered bytes are below the high-water mark, the
+ * rest waits here. When the queue is full, the {@link OverflowPolicy} decides
+ * what happens, so a stalled client can't make the heap grow.
+ * <p>
+ * During a replay the live messages are held back in the queue. When the
+ * replay is over, the ones already replayed are dropped by their sequence
+ * and the rest is sent, so the client sees every message once and in order.
+ *
+ * @author mosomate
+ */
+public class WebSocketClientQueue {
+
+    /**
+     * What to do when the queue of a client is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest queued message.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new message.
+         */
+        DROP_NEWEST,
+        /**
+         * Drop the oldest queued message of the same topic, the oldest one if
+         * there is no such message.
+         */
+        COALESCE,
+        /**
+         * Close the connection of the slow client.
+         */
+        DISCONNECT
+    }
+
+    /**
+     * A message waiting to be sent.
+     */
+    private record PendingMessage(long sequence, String topic, PreEncodedTextFrame frame) {
+    }
+
+    private final WebSocket webSocket;
+
+    private final int capacity;
+
+    private final OverflowPolicy policy;
+
+    private final long highWaterBytes;
+
+    private final ArrayDeque<PendingMessage> queue = new ArrayDeque<>();
+
+    /**
+     * Number of messages dropped for this client.
+     */
+    private long droppedCount = 0;
+
+    /**
+     * Bytes in the socket's own buffer as last measured, plus the bytes sent
+     * since. Never less than the real value, the socket only drains, so it is
+     * measured again only when it reaches the high-water mark.
+     */
+    private long bufferedBytes = 0;
+
+    /**
+     * The highest queue depth so far.
+     */
+    private int maxDepth = 0;
+
+    /**
+     * IDs of the broadcasters the client is interested in, null for all.
+     */
+    private volatile Set<String> broadcasters;
+
+    // Replay state, guarded by this
+    private boolean replaying = false;
+    private long firstLiveSequence = -1;
+    private long lastReplayedSequence = -1;
+
+    public WebSocketClientQueue(WebSocket webSocket, int capacity, OverflowPolicy policy, long highWaterBytes) {
+        this.webSocket = webSocket;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.highWaterBytes = highWaterBytes;
+    }
+
+    /**
+     * Queues a message and sends as much as the socket can take.
+     *
+     * @param sequence sequence of the message in the hub
+     * @param topic topic of the message, only needed for coalescing
+     * @param frame the message to be sent, shared between the clients
+     * @return false if the message was dropped
+     */
+    public synchronized boolean offer(long sequence, String topic, PreEncodedTextFrame frame) {
+        if (!webSocket.isOpen()) {
+            return false;
+        }
+
+        // The live boundary of the running replay
+        if (replaying && firstLiveSequence < 0) {
+            firstLiveSequence = sequence;
+        }
+
+        // Already sent by a replay
+        if (sequence <= lastReplayedSequence) {
+            return true;
+        }
+
+        // Fast path, nothing is waiting and the socket is not congested
+        if (!replaying && queue.isEmpty() && isBelowHighWater()) {
+            return send(frame);
+        }
+
+        // Make room if necessary
+        if (queue.size() >= capacity) {
+            switch (policy) {
+                case DROP_OLDEST -> queue.pollFirst();
+                case DROP_NEWEST -> {
+                    droppedCount++;
+                    return false;
+                }
+                case COALESCE -> removeOldest(topic);
+                case DISCONNECT -> {
+                    droppedCount += queue.size() + 1;
+                    queue.clear();
+                    webSocket.close(CloseFrame.POLICY_VALIDATION, "Slow consumer");
+                    return false;
+                }
+            }
+
+            droppedCount++;
+        }
+
+        queue.addLast(new PendingMessage(sequence, topic, frame));
+        maxDepth = Math.max(maxDepth, queue.size());
+
+        flush();
+
+        return true;
+    }
+
+    /**
+     * Sends queued messages while the socket is below the high-water mark.
+     */
+    public synchronized void flush() {
+        while (!replaying && !queue.isEmpty() && webSocket.isOpen() && isBelowHighWater()) {
+            if (!send(queue.pollFirst().frame())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends a frame. The client may close after the {@code isOpen()} check,
+     * then the frame and the queued messages are dropped.
+     *
+     * @param frame the message
+     * @return false if the client is closed
+     */
+    private boolean send(PreEncodedTextFrame frame) {
+        try {
+            webSocket.sendFrame(frame);
+            bufferedBytes += frame.getEncodedSize();
+            return true;
+        }
+        catch (WebsocketNotConnectedException ex) {
+            droppedCount += queue.size() + 1;
+            queue.clear();
+            webSocket.close();
+            return false;
+        }
+    }
+
+    /**
+     * Starts holding back the live messages. The first one held back marks
+     * the end of the replay.
+     */
+    public synchronized void beginReplay() {
+        if (!replaying) {
+            replaying = true;
+            firstLiveSequence = -1;
+        }
+    }
+
+    /**
+     * @return true if a replayed message can be sent without congesting the
+     * socket
+     */
+    public synchronized boolean canSendReplayed() {
+        return replaying && webSocket.isOpen() && isBelowHighWater();
+    }
+
+    /**
+     * Sends a message of the replay, bypassing the queue.
+     *
+     * @param sequence sequence of the message in the hub
+     * @param frame the message
+     * @return false if the client is closed
+     */
+    public synchronized boolean sendReplayed(long sequence, PreEncodedTextFrame frame) {
+        if (!send(frame)) {
+            return false;
+        }
+
+        lastReplayedSequence = Math.max(lastReplayedSequence, sequence);
+        return true;
+    }
+
+    /**
+     * Ends the replay: the held back messages that were replayed are dropped,
+     * the rest is sent.
+     */
+    public synchronized void endReplay() {
+        replaying = false;
+
+        queue.removeIf((PendingMessage pending) -> pending.sequence() <= lastReplayedSequence);
+
+        flush();
+    }
+
+    /**
+     * @return sequence of the first live message since the replay began, -1
+     * if none arrived yet
+     */
+    public synchronized long getFirstLiveSequence() {
+        return firstLiveSequence;
+    }
+
+    /**
+     * Removes the oldest message of a topic, or the oldest message if none
+     * was found.
+     */
+    private void removeOldest(String topic) {
+        for (Iterator<PendingMessage> it = queue.iterator(); it.hasNext();) {
+            if (Objects.equals(it.next().topic(), topic)) {
+                it.remove();
+                return;
+            }
+        }
+
+        queue.pollFirst();
+    }
+
+    /**
+     * Checks the high-water mark. Walking the socket's buffer is only needed
+     * when the estimate reached the mark.
+     */
+    private boolean isBelowHighWater() {
+        if (bufferedBytes >= highWaterBytes) {
+            bufferedBytes = getBufferedBytes();
+        }
+
+        return bufferedBytes < highWaterBytes;
+    }
+
+    /**
+     * @return bytes waiting in the socket's own buffer
+     */
+    public long getBufferedBytes() {
+        if (!(webSocket instanceof WebSocketImpl webSocketImpl)) {
+            return 0;
+        }
+
+        var bytes = 0L;
+
+        for (var buffer : webSocketImpl.outQueue) {
+            bytes += buffer.remaining();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Decides if the client wants the messages of a broadcaster. Messages
+     * without broadcaster are always accepted.
+     *
+     * @param broadcasterUserId broadcaster of the message, null if unknown
+     * @return true if the message should be sent
+     */
+    public boolean acceptsBroadcaster(String broadcasterUserId) {
+        var currentBroadcasters = broadcasters;
+
+        return currentBroadcasters == null ||
+                broadcasterUserId == null ||
+                currentBroadcasters.contains(broadcasterUserId);
+    }
+
+    public Set<String> getBroadcasters() {
+        return broadcasters;
+    }
+
+    /**
+     * @param broadcasters IDs of the broadcasters the client is interested
+     * in, null for all
+     */
+    public void setBroadcasters(Set<String> broadcasters) {
+        this.broadcasters = broadcasters;
+    }
+
+    public WebSocket getWebSocket() {
+        return webSocket;
+    }
+
+    public synchronized boolean hasPending() {
+        return !queue.isEmpty();
+    }
+
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
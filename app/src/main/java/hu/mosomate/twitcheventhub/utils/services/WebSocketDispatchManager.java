@@ -5,35 +5,139 @@
 package hu.mosomate.twitcheventhub.utils.services;
 
 import hu.mosomate.twitcheventhub.AppSettings;
+import hu.mosomate.twitcheventhub.utils.HttpHelper;
+import hu.mosomate.twitcheventhub.utils.ThreadHelper;
 import hu.mosomate.twitcheventhub.utils.TwitchApiHelper;
+import hu.mosomate.twitcheventhub.utils.eventsub.EventSubEnvelope;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Manages the WebSocket server for dispatching EventSub messages for the
  * connected clients.
+ * <p>
+ * Clients receive every message by default. To receive only some message
+ * types, a client can send
+ * {@code {"type":"subscribe","topics":["channel.follow","channel.raid"]}}.
+ * Topics are subscription types for notifications and message types for
+ * everything else (e.g. "session_keepalive"). The "unsubscribe" message works
+ * the same way and the "*" topic means every message.
+ * <p>
+ * With several accounts the messages carry the broadcaster in
+ * {@code metadata.broadcaster_user_id}. A client can limit the broadcasters
+ * with a "broadcasters" array of user IDs in the same messages, e.g.
+ * {@code {"type":"subscribe","topics":["*"],"broadcasters":["12345"]}}.
+ * <p>
+ * Every client has a bounded {@link WebSocketClientQueue}, configured in
+ * {@link AppSettings}, so slow clients can't make the heap grow.
+ * <p>
+ * Reconnecting clients can ask for the notifications they missed from the
+ * {@link EventJournal}, starting after a {@code message_id}, at a
+ * {@code from_sequence} or {@code since} a time (ISO-8601 or epoch
+ * milliseconds). The best is to ask in the connection URL, e.g.
+ * {@code ws://host:port/?message_id=...}, then nothing live is sent before
+ * the replay. The same keys work in a
+ * {@code {"type":"replay","message_id":"..."}} message too. The journal is
+ * streamed at a limited rate while the live messages are held back, then an
+ * {@code eventhub_replay_complete} message is sent and the live messages
+ * follow without duplicates. Topic and broadcaster filters apply to the
+ * replay as well.
+ * <p>
+ * Clients can publish their own events, e.g.
+ * {@code {"type":"publish","topic":"game.state","event":{...}}}. The hub
+ * wraps the event into a notification with the topic as
+ * {@code metadata.subscription_type} and dispatches it like the ones from
+ * Twitch, so every subscribed client (the publisher too), the UDP targets and
+ * the journal receive it. The topics a client can publish to are configured
+ * in {@link AppSettings} by token, the client gives its token in the
+ * connection URL, e.g. {@code ws://host:port/?publish_token=...}. Clients
+ * without a matching token get the topics of the "*" token. Publishing is
+ * rate limited per client, rejected events are answered with an
+ * {@code eventhub_publish_error} message. The events carry a publisher ID
+ * in {@code payload.subscription.publisher}, it tells the connections apart
+ * without identifying the client's address.
  * 
  * @author mosomate
  */
-public class WebSocketDispatchManager {
+public class WebSocketDispatchManager implements DispatchSink {
     
     private static final Logger logger = Logger.getLogger(UdpDispatchManager.class.getName());
     
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final WebSocketClientQueue.OverflowPolicy DEFAULT_OVERFLOW_POLICY = WebSocketClientQueue.OverflowPolicy.DROP_OLDEST;
+    public static final long DEFAULT_HIGH_WATER_BYTES = 1024 * 1024;
+    
+    /**
+     * Default replay rate in messages per second and client.
+     */
+    public static final int DEFAULT_REPLAY_RATE = 1000;
+    
+    /**
+     * Maximum number of journal records read at once during a replay.
+     */
+    private static final int REPLAY_SCAN_LIMIT = 64;
+    
+    /**
+     * How often the queues of congested clients are retried.
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 20;
+    
+    /**
+     * Default number of events a client can publish per second.
+     */
+    public static final int DEFAULT_PUBLISH_RATE = 20;
+    
+    /**
+     * Publish permission of the clients without a matching token.
+     */
+    public static final String ANONYMOUS_PUBLISHER = "*";
+    
+    /**
+     * Maximum length of a message from a client.
+     */
+    private static final int MAX_CLIENT_MESSAGE_LENGTH = 64 * 1024;
+    
+    /**
+     * Maximum length of a published topic.
+     */
+    private static final int MAX_TOPIC_LENGTH = 128;
+    
     /**
      * Indicates if this service is running or not. Stored in a boolean because
      * I had no better idea. The {@link WebSocketServer} has no function to
      * query this status.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
     
     /**
      * Async WebSocket server.
@@ -45,10 +149,103 @@ public class WebSocketDispatchManager {
      */
     private final ActionListener listener;
     
+    /**
+     * Topics of the connected clients.
+     */
+    private final TopicSubscriptionIndex<WebSocket> subscriptions = new TopicSubscriptionIndex<>();
+    
+    /**
+     * Clients receiving only some of the broadcasters.
+     */
+    private final Set<WebSocket> broadcasterFilteredClients = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Retries sending the queued messages of congested clients.
+     */
+    private volatile ScheduledExecutorService flushExecutor;
+    
+    // Client queue settings of the running service
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile WebSocketClientQueue.OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    private volatile long highWaterBytes = DEFAULT_HIGH_WATER_BYTES;
+    private volatile int replayRate = DEFAULT_REPLAY_RATE;
+    private volatile int publishRate = DEFAULT_PUBLISH_RATE;
+    
+    /**
+     * Source of the replays, null if replaying is not available.
+     */
+    private volatile EventJournal journal;
+    
+    /**
+     * Replays in progress.
+     */
+    private final Map<WebSocket, Replay> replays = new ConcurrentHashMap<>();
+    
+    /**
+     * Sequence of the last message handed over by the hub.
+     */
+    private volatile long lastOfferedSequence = -1;
+    
+    /**
+     * Receives the events published by the clients, null if publishing is
+     * not available.
+     */
+    private volatile DispatchHub hub;
+    
+    /**
+     * Clients allowed to publish.
+     */
+    private final Map<WebSocket, Publisher> publishers = new ConcurrentHashMap<>();
+    
+    /**
+     * Numbers the publishing connections.
+     */
+    private final AtomicLong publisherCount = new AtomicLong();
+    
     public WebSocketDispatchManager(ActionListener listener) {
         this.listener = listener;
     }
     
+    @Override
+    public String getName() {
+        return "websocket";
+    }
+    
+    /**
+     * Sets the journal the replays are read from.
+     * 
+     * @param journal the journal, null to disable replaying
+     */
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Sets the hub the events published by the clients are dispatched
+     * through.
+     * 
+     * @param hub the hub, null to disable publishing
+     */
+    public void setHub(DispatchHub hub) {
+        this.hub = hub;
+        
+        // Replays started before the first message of a restarted hub still
+        // reach the end of the journal
+        if (hub != null && lastOfferedSequence < 0) {
+            lastOfferedSequence = hub.getLastSequence();
+        }
+    }
+    
+    /**
+     * Starts the WebSocket service on the persisted port.
+     */
+    @Override
+    public void start() {
+        if (AppSettings.webSocketPort != null) {
+            start(AppSettings.webSocketPort);
+        }
+    }
+    
     /**
      * Starts the WebSocket service on the given port.
      * 
@@ -59,10 +256,52 @@ public class WebSocketDispatchManager {
             return;
         }
         
-        // Start new service
-        server = new WebSocketServer(new InetSocketAddress(port)) {
+        // Client queue settings
+        queueCapacity = AppSettings.webSocketQueueCapacity != null ?
+                AppSettings.webSocketQueueCapacity :
+                DEFAULT_QUEUE_CAPACITY;
+        
+        overflowPolicy = parseOverflowPolicy(AppSettings.webSocketOverflowPolicy);
+        
+        highWaterBytes = AppSettings.webSocketHighWaterBytes != null ?
+                AppSettings.webSocketHighWaterBytes :
+                DEFAULT_HIGH_WATER_BYTES;
+        
+        replayRate = AppSettings.webSocketReplayRate != null ?
+                AppSettings.webSocketReplayRate :
+                DEFAULT_REPLAY_RATE;
+        
+        publishRate = AppSettings.webSocketPublishRate != null ?
+                AppSettings.webSocketPublishRate :
+                DEFAULT_PUBLISH_RATE;
+        
+        // Start new service, frames are encoded only once for all the clients
+        server = new WebSocketServer(new InetSocketAddress(port), List.of(new PreEncodedFrameDraft())) {
             @Override
             public void onOpen(WebSocket ws, ClientHandshake ch) {
+                // Outbound queue of the client
+                var clientQueue = new WebSocketClientQueue(ws, queueCapacity, overflowPolicy, highWaterBytes);
+                
+                // Replay requested in the connection URL, nothing live is
+                // sent before it
+                var replayRequest = getReplayRequest(ch);
+                
+                if (replayRequest != null) {
+                    clientQueue.beginReplay();
+                }
+                
+                ws.setAttachment(clientQueue);
+                
+                // Topics the client can publish to
+                var publisher = getPublisher(ch);
+                
+                if (publisher != null) {
+                    publishers.put(ws, publisher);
+                }
+                
+                // Receives everything until subscribing
+                subscriptions.addClient(ws);
+                
                 // Send application ID, access token and user ID to client. This way
                 // they will be able to make API calls as well
                 try {
@@ -114,6 +353,22 @@ public class WebSocketDispatchManager {
                                     JSONObject.NULL
                     );
 
+                    // Additional broadcasters
+                    var broadcastersJson = new JSONArray();
+                    
+                    if (AppSettings.accounts != null) {
+                        for (var account : AppSettings.accounts) {
+                            if (account.getUser() != null) {
+                                var broadcasterJson = new JSONObject();
+                                broadcasterJson.put("user_id", account.getUser().getId());
+                                broadcasterJson.put("user_name", account.getUser().getDisplayName());
+                                broadcastersJson.put(broadcasterJson);
+                            }
+                        }
+                    }
+                    
+                    payloadJson.put("broadcasters", broadcastersJson);
+
                     rootJson.put("payload", payloadJson);
 
                     // Send message
@@ -122,18 +377,27 @@ public class WebSocketDispatchManager {
                 catch(JSONException ex) {
                     logger.log(Level.SEVERE, null, ex);
                 }
+                
+                if (replayRequest != null) {
+                    startReplay(ws, replayRequest);
+                }
 
                 listener.onWebSocketClientConnected(ws);
             }
 
             @Override
             public void onClose(WebSocket ws, int i, String string, boolean bln) {
+                subscriptions.removeClient(ws);
+                broadcasterFilteredClients.remove(ws);
+                replays.remove(ws);
+                publishers.remove(ws);
+                
                 listener.onWebSocketClientDisconnected(ws);
             }
 
             @Override
             public void onMessage(WebSocket ws, String string) {
-                // We don't handle messages coming from clients
+                handleClientMessage(ws, string);
             }
 
             @Override
@@ -150,16 +414,58 @@ public class WebSocketDispatchManager {
         
         server.setReuseAddr(true);
         server.start();
+        
+        // Retry congested clients periodically
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(
+                ThreadHelper.newDaemonThreadFactory("websocket-flush")
+        );
+        flushExecutor.scheduleWithFixedDelay(this::flushClientQueues,
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        
+        // Replays go on with the same pace
+        flushExecutor.scheduleWithFixedDelay(this::continueReplays,
+                FLUSH_INTERVAL_MILLIS, FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Reads the overflow policy of the settings, a bad value doesn't keep
+     * the service from starting.
+     * 
+     * @param policy name of the policy, can be null
+     * @return the policy or the default one
+     */
+    private static WebSocketClientQueue.OverflowPolicy parseOverflowPolicy(String policy) {
+        if (policy == null) {
+            return DEFAULT_OVERFLOW_POLICY;
+        }
+        
+        try {
+            return WebSocketClientQueue.OverflowPolicy.valueOf(policy.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException ex) {
+            logger.log(Level.WARNING, "Unknown WebSocket overflow policy {0}, using {1}",
+                    new Object[] { policy, DEFAULT_OVERFLOW_POLICY });
+            return DEFAULT_OVERFLOW_POLICY;
+        }
+    }
+    
     /**
      * Stops the service.
      */
+    @Override
     public void stop() {
         if (!running) {
             return;
         }
         
+        if (flushExecutor != null) {
+            flushExecutor.shutdownNow();
+            flushExecutor = null;
+        }
+        
+        replays.clear();
+        publishers.clear();
+        
         if (server != null) {
             try {
                 server.stop();
@@ -174,6 +480,7 @@ public class WebSocketDispatchManager {
         }
     }
 
+    @Override
     public boolean isRunning() {
         return running;
     }
@@ -181,20 +488,689 @@ public class WebSocketDispatchManager {
     /**
      * Send message to all connected WebSocket clients.
      * 
+     * @param sequence sequence number of the message in the hub
      * @param message the message to be sent
      * @return true is the message was sent
      */
-    public boolean sendMessage(String message) {
+    @Override
+    public boolean offer(long sequence, String message) {
         if (!running) {
             return false;
         }
         
-        // Sending message to all connected clients (broadcasting)
-        server.broadcast(message);
+        lastOfferedSequence = sequence;
+        
+        // Metadata is only needed for filtering and coalescing
+        var unfiltered = subscriptions.isUnfiltered();
+        var broadcasterFiltered = !broadcasterFilteredClients.isEmpty();
+        var envelope = !unfiltered || broadcasterFiltered || overflowPolicy == WebSocketClientQueue.OverflowPolicy.COALESCE ?
+                parseEnvelope(message) :
+                null;
+        var topic = getMessageTopic(envelope);
+        var broadcasterUserId = envelope != null ? envelope.getBroadcasterUserId() : null;
+        
+        // Sending message to all connected clients (broadcasting) or only
+        // to the interested ones
+        Collection<WebSocket> recipients = unfiltered ?
+                server.getConnections() :
+                subscriptions.getRecipients(topic);
+        
+        // Nobody to send to
+        if (recipients.isEmpty()) {
+            return true;
+        }
+        
+        // Encode once, send the same bytes to everyone
+        var frame = new PreEncodedTextFrame(message);
+        
+        for (var ws : recipients) {
+            WebSocketClientQueue clientQueue = ws.getAttachment();
+            
+            if (clientQueue != null && (!broadcasterFiltered || clientQueue.acceptsBroadcaster(broadcasterUserId))) {
+                clientQueue.offer(sequence, topic, frame);
+            }
+        }
         
         return true;
     }
     
+    /**
+     * Sends the queued messages of the clients that were congested.
+     */
+    private void flushClientQueues() {
+        var currentServer = server;
+        
+        if (currentServer == null) {
+            return;
+        }
+        
+        for (var ws : currentServer.getConnections()) {
+            WebSocketClientQueue clientQueue = ws.getAttachment();
+            
+            // An exception would cancel the scheduled flushing for good
+            try {
+                if (clientQueue != null && clientQueue.hasPending()) {
+                    clientQueue.flush();
+                }
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+    
+    /**
+     * Gets the outbound queues of the connected clients, useful for
+     * monitoring drops and queue depths.
+     * 
+     * @return queues of the connected clients
+     */
+    public List<WebSocketClientQueue> getClientQueues() {
+        var currentServer = server;
+        
+        if (!running || currentServer == null) {
+            return List.of();
+        }
+        
+        var clientQueues = new ArrayList<WebSocketClientQueue>();
+        
+        for (var ws : currentServer.getConnections()) {
+            WebSocketClientQueue clientQueue = ws.getAttachment();
+            
+            if (clientQueue != null) {
+                clientQueues.add(clientQueue);
+            }
+        }
+        
+        return clientQueues;
+    }
+    
+    /**
+     * Handles the subscription, replay and publish requests of a client.
+     * Other messages are ignored.
+     * 
+     * @param ws the client
+     * @param message the message from the client
+     */
+    private void handleClientMessage(WebSocket ws, String message) {
+        // Not parsed at all if too large
+        if (message.length() > MAX_CLIENT_MESSAGE_LENGTH) {
+            logger.log(Level.WARNING, "Client message of {0} characters ignored", message.length());
+            return;
+        }
+        
+        try {
+            var jsonMessage = new JSONObject(message);
+            var type = jsonMessage.optString("type");
+            
+            // Replay request
+            if (type.equals("replay")) {
+                startReplay(ws, jsonMessage);
+                return;
+            }
+            
+            // Event from the client
+            if (type.equals("publish")) {
+                publish(ws, jsonMessage);
+                return;
+            }
+            
+            // Not a subscription request
+            if (!type.equals("subscribe") && !type.equals("unsubscribe")) {
+                return;
+            }
+            
+            // Get topics, optional if broadcasters are given
+            var topicsJson = jsonMessage.optJSONArray("topics");
+            
+            if (topicsJson != null) {
+                var topics = new ArrayList<String>(topicsJson.length());
+
+                for (var i = 0; i < topicsJson.length(); i++) {
+                    topics.add(topicsJson.getString(i));
+                }
+
+                // Update index
+                if (type.equals("subscribe")) {
+                    subscriptions.subscribe(ws, topics);
+                }
+                else {
+                    subscriptions.unsubscribe(ws, topics);
+                }
+            }
+            
+            // Update broadcasters if given
+            var broadcastersJson = jsonMessage.optJSONArray("broadcasters");
+            
+            if (broadcastersJson != null) {
+                updateBroadcasters(ws, type.equals("subscribe"), broadcastersJson);
+            }
+        }
+        catch (JSONException ex) {
+            logger.log(Level.WARNING, "Invalid client message: {0}", ex.getMessage());
+        }
+    }
+    
+    /**
+     * Adds or removes broadcasters of a client. A client without broadcasters
+     * receives all of them again.
+     * 
+     * @param ws the client
+     * @param add true to add, false to remove
+     * @param broadcastersJson the broadcaster user IDs
+     * @throws JSONException if the array is malformed
+     */
+    private void updateBroadcasters(WebSocket ws, boolean add, JSONArray broadcastersJson) throws JSONException {
+        WebSocketClientQueue clientQueue = ws.getAttachment();
+        
+        if (clientQueue == null) {
+            return;
+        }
+        
+        var broadcasters = clientQueue.getBroadcasters() != null ?
+                new HashSet<>(clientQueue.getBroadcasters()) :
+                new HashSet<String>();
+        
+        for (var i = 0; i < broadcastersJson.length(); i++) {
+            if (add) {
+                broadcasters.add(broadcastersJson.getString(i));
+            }
+            else {
+                broadcasters.remove(broadcastersJson.getString(i));
+            }
+        }
+        
+        // Filter only if there is something to filter for
+        if (broadcasters.isEmpty()) {
+            clientQueue.setBroadcasters(null);
+            broadcasterFilteredClients.remove(ws);
+        }
+        else {
+            clientQueue.setBroadcasters(Set.copyOf(broadcasters));
+            broadcasterFilteredClients.add(ws);
+        }
+    }
+    
+    /**
+     * Dispatches an event published by a client through the hub.
+     * 
+     * @param ws the client
+     * @param request the publish request with "topic" and "event"
+     */
+    private void publish(WebSocket ws, JSONObject request) {
+        var currentHub = hub;
+        var publisher = publishers.get(ws);
+        var topic = request.optString("topic");
+        var event = request.optJSONObject("event");
+        
+        if (currentHub == null || publisher == null) {
+            sendControlMessage(ws, "eventhub_publish_error", "error", "Publishing is not allowed");
+            return;
+        }
+        
+        if (!isValidTopic(topic) || event == null) {
+            sendControlMessage(ws, "eventhub_publish_error", "error", "A valid topic and an event object are required");
+            return;
+        }
+        
+        if (!publisher.isAllowed(topic)) {
+            sendControlMessage(ws, "eventhub_publish_error", "error", "Publishing to " + topic + " is not allowed");
+            return;
+        }
+        
+        if (!publisher.tryAcquire(publishRate)) {
+            sendControlMessage(ws, "eventhub_publish_error", "error", "Rate limit exceeded");
+            return;
+        }
+        
+        try {
+            // Same shape as the notifications from Twitch
+            var isoNow = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
+            
+            var metaDataJson = new JSONObject();
+            metaDataJson.put("message_id", UUID.randomUUID().toString());
+            metaDataJson.put("message_type", "notification");
+            metaDataJson.put("message_timestamp", isoNow);
+            metaDataJson.put("subscription_type", topic);
+            
+            var subscriptionJson = new JSONObject();
+            subscriptionJson.put("type", topic);
+            subscriptionJson.put("publisher", publisher.id);
+            
+            var payloadJson = new JSONObject();
+            payloadJson.put("subscription", subscriptionJson);
+            payloadJson.put("event", event);
+            
+            // Metadata goes first, the sinks don't have to scan the payload
+            var message = "{\"metadata\":" + metaDataJson + ",\"payload\":" + payloadJson + "}";
+            
+            currentHub.publish(message);
+        }
+        catch (JSONException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+    }
+    
+    /**
+     * Finds the publish permission of a connecting client by the token in
+     * the connection URL.
+     * 
+     * @param ch handshake of the client
+     * @return the publisher or null if the client can't publish
+     */
+    private Publisher getPublisher(ClientHandshake ch) {
+        var permissions = AppSettings.webSocketPublishPermissions;
+        
+        if (permissions == null || permissions.isEmpty()) {
+            return null;
+        }
+        
+        String token = null;
+        
+        try {
+            token = HttpHelper.parseQueryString(new URI(ch.getResourceDescriptor()).getRawQuery()).get("publish_token");
+        }
+        catch (URISyntaxException ex) {
+            logger.log(Level.WARNING, "Invalid WebSocket URL: {0}", ex.getMessage());
+        }
+        
+        // Tokens are compared in constant time
+        if (token != null && !token.isEmpty()) {
+            var tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+            
+            for (var entry : permissions.entrySet()) {
+                if (!entry.getKey().equals(ANONYMOUS_PUBLISHER)
+                        && MessageDigest.isEqual(tokenBytes, entry.getKey().getBytes(StandardCharsets.UTF_8))) {
+                    return new Publisher(nextPublisherId(), entry.getValue());
+                }
+            }
+        }
+        
+        var topics = permissions.get(ANONYMOUS_PUBLISHER);
+        
+        return topics != null && !topics.isEmpty() ? new Publisher(nextPublisherId(), topics) : null;
+    }
+    
+    /**
+     * @return a new ID for a publishing connection, unique until restart
+     */
+    private String nextPublisherId() {
+        return "client-" + publisherCount.incrementAndGet();
+    }
+    
+    /**
+     * Checks a published topic, it is a word with dots, colons, dashes and
+     * underscores.
+     * 
+     * @param topic the topic
+     * @return true if the topic is valid
+     */
+    private static boolean isValidTopic(String topic) {
+        if (topic.isEmpty() || topic.length() > MAX_TOPIC_LENGTH) {
+            return false;
+        }
+        
+        for (var i = 0; i < topic.length(); i++) {
+            var c = topic.charAt(i);
+            
+            if (!(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && !(c >= '0' && c <= '9')
+                    && c != '.' && c != ':' && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Reads the replay parameters of the connection URL.
+     * 
+     * @param ch handshake of the client
+     * @return the replay request or null if there is none
+     */
+    private static JSONObject getReplayRequest(ClientHandshake ch) {
+        try {
+            var parameters = HttpHelper.parseQueryString(new URI(ch.getResourceDescriptor()).getRawQuery());
+            
+            if (parameters.containsKey("message_id") || parameters.containsKey("from_sequence") || parameters.containsKey("since")) {
+                return new JSONObject(parameters);
+            }
+        }
+        catch (URISyntaxException ex) {
+            logger.log(Level.WARNING, "Invalid WebSocket URL: {0}", ex.getMessage());
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Starts replaying the journal to a client. The live messages are held
+     * back from now on.
+     * 
+     * @param ws the client
+     * @param request the replay request with one of the "message_id",
+     * "from_sequence" and "since" keys
+     */
+    private void startReplay(WebSocket ws, JSONObject request) {
+        WebSocketClientQueue clientQueue = ws.getAttachment();
+        var currentJournal = journal;
+        
+        if (clientQueue == null) {
+            return;
+        }
+        
+        if (replays.containsKey(ws)) {
+            sendControlMessage(ws, "eventhub_replay_error", "error", "Replay already in progress");
+            return;
+        }
+        
+        if (currentJournal == null || !currentJournal.isRunning()) {
+            rejectReplay(ws, clientQueue, "Replay is not available");
+            return;
+        }
+        
+        // Find the first sequence to replay
+        long fromSequence;
+        
+        try {
+            if (request.has("message_id")) {
+                var messageSequence = currentJournal.findSequenceByMessageId(request.getString("message_id"));
+                
+                if (messageSequence < 0) {
+                    rejectReplay(ws, clientQueue, "Message not found in the journal");
+                    return;
+                }
+                
+                fromSequence = messageSequence + 1;
+            }
+            else if (request.has("from_sequence")) {
+                fromSequence = request.getLong("from_sequence");
+            }
+            else {
+                var since = request.get("since");
+                var sinceMillis = since instanceof Number number ?
+                        number.longValue() :
+                        HttpHelper.parseTime(since.toString());
+                
+                fromSequence = currentJournal.findSequenceByTime(sinceMillis);
+                
+                // Nothing since then
+                if (fromSequence < 0) {
+                    fromSequence = currentJournal.getLastSequence() + 1;
+                }
+            }
+        }
+        catch (JSONException | DateTimeParseException | NumberFormatException ex) {
+            rejectReplay(ws, clientQueue, "Invalid replay request: " + ex.getMessage());
+            return;
+        }
+        
+        // Everything after the last offered message reaches the client live
+        clientQueue.beginReplay();
+        replays.put(ws, new Replay(ws, clientQueue, fromSequence, lastOfferedSequence));
+    }
+    
+    /**
+     * Tells the client why the replay failed and lets the live messages go,
+     * in case they were held back for the replay.
+     */
+    private static void rejectReplay(WebSocket ws, WebSocketClientQueue clientQueue, String error) {
+        sendControlMessage(ws, "eventhub_replay_error", "error", error);
+        clientQueue.endReplay();
+    }
+    
+    /**
+     * Sends the next part of every replay, at most the replay rate, and only
+     * while the clients keep up.
+     */
+    private void continueReplays() {
+        var currentJournal = journal;
+        var budget = (int) Math.max(1, replayRate * FLUSH_INTERVAL_MILLIS / 1_000);
+        
+        for (var replay : replays.values()) {
+            if (!replay.ws.isOpen() || currentJournal == null) {
+                replays.remove(replay.ws);
+                continue;
+            }
+            
+            try {
+                continueReplay(replay, currentJournal, budget);
+            }
+            catch (Exception ex) {
+                logger.log(Level.SEVERE, null, ex);
+                finishReplay(replay);
+            }
+        }
+    }
+    
+    private void continueReplay(Replay replay, EventJournal currentJournal, int budget) {
+        // Messages from the first live one were not missed
+        var firstLiveSequence = replay.clientQueue.getFirstLiveSequence();
+        var lastSequence = firstLiveSequence >= 0 ?
+                Math.min(replay.targetSequence, firstLiveSequence - 1) :
+                replay.targetSequence;
+        
+        replay.scanned = 0;
+        
+        while (replay.scanned < budget && replay.nextSequence <= lastSequence && replay.clientQueue.canSendReplayed()) {
+            var visited = currentJournal.scan(replay.nextSequence, lastSequence, Math.min(budget - replay.scanned, REPLAY_SCAN_LIMIT),
+                    (long sequence, long timestamp, ByteBuffer payload) -> {
+                        replay.scanned++;
+                        
+                        if (acceptsReplayed(replay, payload)) {
+                            // Copied straight from the mapped journal into the frame
+                            if (replay.clientQueue.sendReplayed(sequence, new PreEncodedTextFrame(payload))) {
+                                replay.sentCount++;
+                            }
+                        }
+                    });
+            
+            // Nothing more in the journal yet
+            if (visited < 0) {
+                break;
+            }
+            
+            replay.nextSequence = visited + 1;
+        }
+        
+        // Done when all the missed messages are journaled and sent
+        if (replay.nextSequence > lastSequence ||
+                (currentJournal.getLastSequence() < replay.nextSequence && currentJournal.getProcessedSequence() >= lastSequence)) {
+            finishReplay(replay);
+        }
+    }
+    
+    /**
+     * Tells the client that the replay is over and lets the live messages
+     * go.
+     */
+    private void finishReplay(Replay replay) {
+        replays.remove(replay.ws);
+        
+        sendControlMessage(replay.ws, "eventhub_replay_complete", "replayed", replay.sentCount);
+        replay.clientQueue.endReplay();
+    }
+    
+    /**
+     * Applies the filters of the client to a replayed message. The message is
+     * decoded only for filtered clients.
+     */
+    private boolean acceptsReplayed(Replay replay, ByteBuffer payload) {
+        var topicFiltered = !subscriptions.isSubscribed(replay.ws, null);
+        var broadcasterFiltered = broadcasterFilteredClients.contains(replay.ws);
+        
+        if (!topicFiltered && !broadcasterFiltered) {
+            return true;
+        }
+        
+        var envelope = parseEnvelope(StandardCharsets.UTF_8.decode(payload.duplicate()).toString());
+        
+        return (!topicFiltered || subscriptions.isSubscribed(replay.ws, getMessageTopic(envelope))) &&
+                replay.clientQueue.acceptsBroadcaster(envelope != null ? envelope.getBroadcasterUserId() : null);
+    }
+    
+    /**
+     * Sends a message of the hub itself to a client, in the same format as
+     * the EventSub messages.
+     * 
+     * @param ws the client
+     * @param messageType type of the message
+     * @param key key of the only payload property
+     * @param value value of the only payload property
+     */
+    private static void sendControlMessage(WebSocket ws, String messageType, String key, Object value) {
+        try {
+            var isoNow = DateTimeFormatter.ISO_INSTANT.format(Instant.now());
+            
+            var metaDataJson = new JSONObject();
+            metaDataJson.put("message_id", TwitchApiHelper.Md5StringToId(DigestUtils.md5Hex(isoNow + messageType)));
+            metaDataJson.put("message_type", messageType);
+            metaDataJson.put("message_timestamp", isoNow);
+            
+            var payloadJson = new JSONObject();
+            payloadJson.put(key, value);
+            
+            var rootJson = new JSONObject();
+            rootJson.put("metadata", metaDataJson);
+            rootJson.put("payload", payloadJson);
+            
+            ws.send(rootJson.toString());
+        }
+        catch (JSONException ex) {
+            logger.log(Level.SEVERE, null, ex);
+        }
+        catch (WebsocketNotConnectedException ex) {
+            // Closed in the meantime, nobody to tell
+        }
+    }
+    
+    /**
+     * A replay in progress, used only by the flush thread.
+     */
+    private static final class Replay {
+        
+        private final WebSocket ws;
+        
+        private final WebSocketClientQueue clientQueue;
+        
+        /**
+         * The last sequence to replay, later ones reach the client live.
+         */
+        private final long targetSequence;
+        
+        private long nextSequence;
+        
+        private long sentCount = 0;
+        
+        /**
+         * Records read in the current step.
+         */
+        private int scanned = 0;
+        
+        private Replay(WebSocket ws, WebSocketClientQueue clientQueue, long nextSequence, long targetSequence) {
+            this.ws = ws;
+            this.clientQueue = clientQueue;
+            this.nextSequence = nextSequence;
+            this.targetSequence = targetSequence;
+        }
+    }
+    
+    /**
+     * Publish permission and rate limit of a client.
+     */
+    private static final class Publisher {
+        
+        /**
+         * Published with the events instead of the client's address.
+         */
+        private final String id;
+        
+        /**
+         * Allowed topics, "*" is every topic, "game.*" is every topic
+         * starting with "game.".
+         */
+        private final List<String> topics;
+        
+        /**
+         * Events the client can publish right now.
+         */
+        private double tokens = -1;
+        
+        private long refillTime;
+        
+        private Publisher(String id, List<String> topics) {
+            this.id = id;
+            this.topics = List.copyOf(topics);
+        }
+        
+        private boolean isAllowed(String topic) {
+            for (var pattern : topics) {
+                if (pattern.equals("*") || pattern.equals(topic)
+                        || (pattern.endsWith("*") && topic.startsWith(pattern.substring(0, pattern.length() - 1)))) {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        /**
+         * Takes a token from the bucket, which holds at most a second of
+         * events.
+         * 
+         * @param rate events per second
+         * @return true if the event can be published
+         */
+        private synchronized boolean tryAcquire(int rate) {
+            var now = System.nanoTime();
+            var capacity = Math.max(1, rate);
+            
+            tokens = tokens < 0 ?
+                    capacity :
+                    Math.min(capacity, tokens + (now - refillTime) * capacity / 1e9);
+            refillTime = now;
+            
+            if (tokens < 1) {
+                return false;
+            }
+            
+            tokens--;
+            return true;
+        }
+    }
+    
+    /**
+     * Reads the metadata of a message.
+     * 
+     * @param message an EventSub message
+     * @return the envelope or null if the message is malformed
+     */
+    private static EventSubEnvelope parseEnvelope(String message) {
+        try {
+            return EventSubEnvelope.parse(message);
+        }
+        catch (JSONException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the topic of a message: the subscription type for notifications,
+     * the message type for everything else.
+     * 
+     * @param envelope metadata of an EventSub message, can be null
+     * @return the topic or null if not found
+     */
+    private static String getMessageTopic(EventSubEnvelope envelope) {
+        if (envelope == null) {
+            return null;
+        }
+        
+        return envelope.getSubscriptionType() != null ?
+                envelope.getSubscriptionType() :
+                envelope.getMessageType();
+    }
+    
     public interface ActionListener {
         void onWebSocketServerStarted();
         void onWebSocketServerStopped();